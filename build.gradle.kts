@@ -44,6 +44,14 @@ java {
     withSourcesJar()
 }
 
+// Standalone benchmarks, run with plain Java against the compiled plugin (no server)
+sourceSets {
+    create("benchmark") {
+        compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
 tasks {
     jar {
         archiveClassifier.set("dev")
@@ -63,4 +71,11 @@ tasks {
     build {
         dependsOn(reobfJar)
     }
+
+    register<JavaExec>("benchmark") {
+        group = "verification"
+        description = "Runs the source iteration benchmark."
+        classpath = sourceSets["benchmark"].runtimeClasspath
+        mainClass.set("com.floweytf.mcfext.benchmark.SourceIterationBenchmark")
+    }
 }
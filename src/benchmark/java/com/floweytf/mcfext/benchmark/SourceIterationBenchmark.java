@@ -0,0 +1,84 @@
+package com.floweytf.mcfext.benchmark;
+
+import com.floweytf.mcfext.execution.FuncExecStack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the two ways {@code run}/{@code loop} iterated their sources on the {@link FuncExecStack}: replacing the
+ * source list with {@code subList(1, size)} after every source (the original code), and advancing a source cursor in
+ * place. Sources are plain objects, so this runs without a server: {@code ./gradlew benchmark}.
+ * <p>
+ * This is a plain timing loop rather than a JMH harness, so only large differences are meaningful.
+ */
+public final class SourceIterationBenchmark {
+    private static final int SOURCES = 10_000;
+    private static final int WARMUP = 200;
+    private static final int RUNS = 200;
+
+    private static Object sink;
+
+    private SourceIterationBenchmark() {
+    }
+
+    private static void subListChain(List<Object> sources) {
+        final var stack = new FuncExecStack<Object>();
+        stack.pushSourceList(sources);
+
+        // Same as the original cfv1::run::pop_source_or_branch
+        while (!stack.peekSourceList().isEmpty()) {
+            final var list = stack.popSourceList();
+            stack.pushSourceList(list.subList(1, list.size()));
+            sink = list.get(0);
+        }
+
+        stack.popSourceList();
+    }
+
+    private static void cursor(List<Object> sources) {
+        final var stack = new FuncExecStack<Object>();
+        stack.pushSourceCursor(sources);
+
+        while (stack.sourceCursorHasNext()) {
+            sink = stack.sourceCursorNext();
+        }
+
+        stack.popSourceCursor();
+    }
+
+    private static double measure(String name, List<Object> sources, boolean useCursor) {
+        for (int i = 0; i < WARMUP; i++) {
+            if (useCursor) {
+                cursor(sources);
+            } else {
+                subListChain(sources);
+            }
+        }
+
+        final var start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            if (useCursor) {
+                cursor(sources);
+            } else {
+                subListChain(sources);
+            }
+        }
+
+        final var micros = (System.nanoTime() - start) / 1e3 / RUNS;
+        System.out.printf("%-14s %10.1f us per %d sources (%.2f ns per source)%n", name, micros, sources.size(),
+            micros * 1e3 / sources.size());
+        return micros;
+    }
+
+    public static void main(String[] args) {
+        final var sources = new ArrayList<Object>(SOURCES);
+        for (int i = 0; i < SOURCES; i++) {
+            sources.add(new Object());
+        }
+
+        final var chain = measure("subList chain", sources, false);
+        final var cursor = measure("cursor", sources, true);
+        System.out.printf("cursor is %.1fx faster%n", chain / cursor);
+    }
+}
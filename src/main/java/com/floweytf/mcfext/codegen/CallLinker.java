@@ -0,0 +1,300 @@
+package com.floweytf.mcfext.codegen;
+
+import com.floweytf.mcfext.execution.CompiledActionList;
+import com.floweytf.mcfext.execution.ExecConfig;
+import com.floweytf.mcfext.execution.instr.ImportCallInstr;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.context.ContextChain;
+import com.mojang.brigadier.context.ParsedArgument;
+import com.mojang.brigadier.tree.LiteralCommandNode;
+import com.mojang.datafixers.util.Either;
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.arguments.item.FunctionArgument;
+import net.minecraft.commands.execution.tasks.BuildContexts;
+import net.minecraft.commands.functions.CommandFunction;
+import net.minecraft.commands.functions.PlainTextFunction;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.ServerFunctionLibrary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Datapack-wide link step, run once every function of a (re)loaded {@link ServerFunctionLibrary} has been compiled.
+ * <p>
+ * Vanilla resolves the target of {@code function <id>} every time it runs: the function is looked up in the
+ * library, and {@code function #<tag>} looks up the tag. Since the library can't change until the next reload, static
+ * calls (plain {@code function <id>} or {@code function #<tag>} commands, with no macro arguments and not behind
+ * {@code execute}) are linked instead: the function argument of the command is replaced with one holding the resolved
+ * function, or the tag's functions as a precomputed list. Everything else about the command, such as its feedback,
+ * return value and frame, stays the same.
+ * <p>
+ * Calls to functions or tags that don't exist are left alone, so they still fail at runtime like in vanilla. Every
+ * reload compiles fresh functions, which are linked against the new library, so links never go stale. Linking can be
+ * turned off with {@link ExecConfig#LINK_CALLS}.
+ * <p>
+ * Small functions are inlined into their callers before anything is linked, see {@link FunctionInliner}.
+ * <p>
+ * Calls to subroutines imported from other functions (see {@link ImportCallInstr}) are resolved here too. These are
+ * always linked, since there is no other way to run them.
+ */
+public final class CallLinker {
+    private static final Logger LOGGER = LogManager.getLogger("FunctionLinker");
+
+    /**
+     * A pre-resolved {@code function} argument.
+     */
+    private record LinkedResult(
+        Pair<ResourceLocation, Either<CommandFunction<CommandSourceStack>,
+            Collection<CommandFunction<CommandSourceStack>>>> unwrapped,
+        Pair<ResourceLocation, Collection<CommandFunction<CommandSourceStack>>> collection
+    ) implements FunctionArgument.Result {
+        @Override
+        public Collection<CommandFunction<CommandSourceStack>> create(CommandContext<CommandSourceStack> context) {
+            return collection.getSecond();
+        }
+
+        @Override
+        public Pair<ResourceLocation, Either<CommandFunction<CommandSourceStack>,
+            Collection<CommandFunction<CommandSourceStack>>>> unwrap(CommandContext<CommandSourceStack> context) {
+            return unwrapped;
+        }
+
+        @Override
+        public Pair<ResourceLocation, Collection<CommandFunction<CommandSourceStack>>> unwrapToCollection(
+            CommandContext<CommandSourceStack> context) {
+            return collection;
+        }
+    }
+
+    private record Link(BuildContexts.Unbound<CommandSourceStack> command, boolean isTag) {
+    }
+
+    private CallLinker() {
+    }
+
+    /**
+     * @return The compiled instructions of the function {@code id}, or {@code null} if it isn't a compiled plain
+     * function.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static CompiledActionList<CommandSourceStack> actionsOf(
+        ServerFunctionLibrary library, ResourceLocation id) {
+        if (library.getFunction(id).orElse(null) instanceof PlainTextFunction<CommandSourceStack> plain &&
+            plain.entries() instanceof CompiledActionList<?> actions) {
+            return (CompiledActionList<CommandSourceStack>) actions;
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolves the calls to imported subroutines of every compiled function in {@code library}.
+     */
+    @SuppressWarnings("unchecked")
+    private static void linkImports(ServerFunctionLibrary library) {
+        int calls = 0;
+        int unresolved = 0;
+        // Functions and the functions they import subroutines from
+        final var callers = new ArrayList<CompiledActionList<CommandSourceStack>>();
+        final var callees = new ArrayList<Set<CompiledActionList<CommandSourceStack>>>();
+
+        for (final var entry : library.getFunctions().entrySet()) {
+            if (!(entry.getValue() instanceof PlainTextFunction<CommandSourceStack> plain) ||
+                !(plain.entries() instanceof CompiledActionList<CommandSourceStack> actions)) {
+                continue;
+            }
+
+            final var linked = new HashSet<CompiledActionList<CommandSourceStack>>();
+
+            for (final var action : actions) {
+                if (!(action instanceof ImportCallInstr<?> instr)) {
+                    continue;
+                }
+
+                final var call = (ImportCallInstr<CommandSourceStack>) instr;
+                for (final var id : call.imports()) {
+                    final var target = actionsOf(library, id);
+
+                    if (target != null && target.subroutines().containsKey(call.name())) {
+                        call.link(target, target.subroutines().getInt(call.name()));
+                        linked.add(target);
+                        break;
+                    }
+                }
+
+                if (call.code() != null) {
+                    calls++;
+                } else {
+                    unresolved++;
+                    LOGGER.error(
+                        "Function '{}' calls subroutine '{}', which isn't defined by any of {}",
+                        entry.getKey(), call.name(), call.imports()
+                    );
+                }
+            }
+
+            if (!linked.isEmpty()) {
+                callers.add(actions);
+                callees.add(linked);
+            }
+        }
+
+        // The stack is only unchecked if every subroutine that may run on it was verified
+        for (boolean changed = true; changed; ) {
+            changed = false;
+
+            for (int i = 0; i < callers.size(); i++) {
+                final var actions = callers.get(i);
+
+                if (CompiledActionList.hasFeature(actions, CompiledActionList.VERIFIED) && callees.get(i).stream()
+                    .anyMatch(callee -> !CompiledActionList.hasFeature(callee, CompiledActionList.VERIFIED))) {
+                    actions.removeFeatures(CompiledActionList.VERIFIED);
+                    changed = true;
+                }
+            }
+        }
+
+        if (calls + unresolved > 0) {
+            LOGGER.info("Linked {} imported subroutine calls ({} unresolved)", calls, unresolved);
+        }
+    }
+
+    /**
+     * Links the static calls of every compiled function in {@code library}, after inlining (see
+     * {@link FunctionInliner}).
+     */
+    public static void link(ServerFunctionLibrary library) {
+        FunctionInliner.inline(library);
+        linkImports(library);
+
+        if (ExecConfig.LINK_CALLS) {
+            linkCalls(library);
+        }
+
+        // Functions can't be relinked once their calls to imported subroutines are, so their graphs can go
+        for (final var function : library.getFunctions().values()) {
+            if (function instanceof PlainTextFunction<CommandSourceStack> plain &&
+                plain.entries() instanceof CompiledActionList<CommandSourceStack> actions) {
+                actions.setRelinker(null);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void linkCalls(ServerFunctionLibrary library) {
+        int calls = 0;
+        int tagCalls = 0;
+
+        for (final var function : library.getFunctions().values()) {
+            // Macro functions are instantiated on every call, and aren't linked
+            if (!(function instanceof PlainTextFunction<CommandSourceStack> plain) ||
+                !(plain.entries() instanceof CompiledActionList<CommandSourceStack> actions)) {
+                continue;
+            }
+
+            for (int i = 0; i < actions.size(); i++) {
+                if (!(actions.get(i) instanceof BuildContexts.Unbound<?> command)) {
+                    continue;
+                }
+
+                final var linked = link(library, (BuildContexts.Unbound<CommandSourceStack>) command);
+                if (linked != null) {
+                    actions.set(i, linked.command());
+
+                    if (linked.isTag()) {
+                        tagCalls++;
+                    } else {
+                        calls++;
+                    }
+                }
+            }
+        }
+
+        LOGGER.info("Linked {} function calls and {} function tag calls", calls, tagCalls);
+    }
+
+    /**
+     * @return The function (or {@code #}-prefixed tag) called by {@code command}, or {@code null} if the command isn't
+     * a static call.
+     */
+    @Nullable
+    static String staticCallTarget(BuildContexts.Unbound<CommandSourceStack> command) {
+        final var chain = command.command;
+        if (chain.getStage() != ContextChain.Stage.EXECUTE) {
+            return null;
+        }
+
+        // function <name>, as opposed to execute ... run function, or function <name> with ...
+        final var context = chain.getTopContext();
+        final var nodes = context.getNodes();
+        if (nodes.size() != 2 || context.getChild() != null ||
+            !(nodes.get(0).getNode() instanceof LiteralCommandNode<?> literal) ||
+            !literal.getLiteral().equals("function") || !nodes.get(1).getNode().getName().equals("name")) {
+            return null;
+        }
+
+        return nodes.get(1).getRange().get(context.getInput());
+    }
+
+    /**
+     * @return The linked command, or {@code null} if the command isn't a static call.
+     */
+    @Nullable
+    private static Link link(ServerFunctionLibrary library, BuildContexts.Unbound<CommandSourceStack> command) {
+        final var text = staticCallTarget(command);
+        if (text == null) {
+            return null;
+        }
+
+        final var context = command.command.getTopContext();
+        final var nodes = context.getNodes();
+        final var range = nodes.get(1).getRange();
+        final var isTag = text.startsWith("#");
+        final var id = ResourceLocation.tryParse(isTag ? text.substring(1) : text);
+        if (id == null) {
+            return null;
+        }
+
+        final LinkedResult result;
+        if (isTag) {
+            final var tag = library.getTag(id);
+            if (tag == null) {
+                return null;
+            }
+
+            final var functions = List.copyOf(tag);
+            result = new LinkedResult(Pair.of(id, Either.right(functions)), Pair.of(id, functions));
+        } else {
+            final var function = library.getFunction(id);
+            if (function.isEmpty()) {
+                return null;
+            }
+
+            result = new LinkedResult(
+                Pair.of(id, Either.left(function.get())), Pair.of(id, List.of(function.get()))
+            );
+        }
+
+        final var linked = new CommandContext<>(
+            context.getSource(), context.getInput(),
+            Map.of("name", new ParsedArgument<CommandSourceStack, FunctionArgument.Result>(
+                range.getStart(), range.getEnd(), result
+            )),
+            context.getCommand(), context.getRootNode(), nodes, context.getRange(), null,
+            context.getRedirectModifier(), context.isForked()
+        );
+
+        final var linkedChain = new ContextChain<>(List.of(), linked);
+        return new Link(new BuildContexts.Unbound<>(command.commandInput, linkedChain), isTag);
+    }
+}
@@ -0,0 +1,132 @@
+package com.floweytf.mcfext.codegen;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Optimization passes over a {@link ControlFlowGraph}, run in order by {@link CodeGenerator} before lowering. Every
+ * pass keeps the behaviour of the function unchanged; they only remove branches and dead instructions.
+ */
+public final class CfgPasses {
+    /**
+     * A named pass.
+     */
+    public record Pass(String name, Consumer<ControlFlowGraph<?>> pass) {
+    }
+
+    public static final List<Pass> PASSES = List.of(
+        new Pass("thread_jumps", CfgPasses::threadJumps),
+        new Pass("remove_unreachable", CfgPasses::removeUnreachable),
+        new Pass("merge_blocks", CfgPasses::mergeBlocks),
+        new Pass("layout", CfgPasses::layout)
+    );
+
+    private CfgPasses() {
+    }
+
+    /**
+     * Follows empty blocks that only continue elsewhere.
+     */
+    private static <T> ControlFlowGraph.Block<T> forward(ControlFlowGraph.Block<T> block) {
+        // Empty infinite loops never get anywhere
+        final var seen = new HashSet<ControlFlowGraph.Block<T>>();
+
+        while (block.nodes.isEmpty() && block.next != null && seen.add(block)) {
+            block = block.next;
+        }
+
+        return block;
+    }
+
+    /**
+     * Retargets branches (and labels) to empty blocks that only continue elsewhere, to where they continue at. A
+     * branch to an empty block that exits the function becomes an exit.
+     */
+    public static <T> void threadJumps(ControlFlowGraph<T> graph) {
+        for (final var block : graph.blocks) {
+            if (block.next == null) {
+                continue;
+            }
+
+            final var target = forward(block.next);
+
+            if (target.nodes.isEmpty() && target.exits) {
+                block.next = null;
+                block.exits = true;
+            } else {
+                block.next = target;
+            }
+        }
+
+        // Subroutines are procedure entries, and stay put
+        graph.labels.replaceAll((label, block) -> graph.roots.contains(label) ? block : forward(block));
+    }
+
+    /**
+     * Removes blocks that can't be reached from the entry of the function or of a subroutine, such as instructions
+     * following a {@code return}.
+     */
+    public static <T> void removeUnreachable(ControlFlowGraph<T> graph) {
+        final var reachable = graph.reachableBlocks();
+
+        graph.blocks.removeIf(block -> !reachable.contains(block));
+        // Labels of removed blocks are no longer used by any instruction
+        graph.labels.values().removeIf(block -> !reachable.contains(block));
+    }
+
+    /**
+     * Appends blocks to the block continuing at them, if that is their only predecessor and their address isn't used.
+     */
+    public static <T> void mergeBlocks(ControlFlowGraph<T> graph) {
+        final var predecessors = new HashMap<ControlFlowGraph.Block<T>, Integer>();
+        graph.blocks.forEach(block -> {
+            if (block.next != null) {
+                predecessors.merge(block.next, 1, Integer::sum);
+            }
+        });
+
+        final var addressed = graph.addressedBlocks();
+        final var merged = new HashSet<ControlFlowGraph.Block<T>>();
+
+        for (final var block : graph.blocks) {
+            if (merged.contains(block)) {
+                continue;
+            }
+
+            var next = block.next;
+            while (next != null && next != block && !addressed.contains(next) && predecessors.get(next) == 1) {
+                block.nodes.addAll(next.nodes);
+                block.next = next.next;
+                block.exits = next.exits;
+                merged.add(next);
+
+                final var from = next;
+                graph.labels.replaceAll((label, target) -> target == from ? block : target);
+                next = block.next;
+            }
+        }
+
+        graph.blocks.removeIf(merged::contains);
+    }
+
+    /**
+     * Orders blocks so that blocks are followed by the block they continue at where possible, which makes the branch
+     * between them unnecessary. Blocks otherwise keep their order, and the entry stays first.
+     */
+    public static <T> void layout(ControlFlowGraph<T> graph) {
+        final var placed = new LinkedHashSet<ControlFlowGraph.Block<T>>();
+
+        for (final var block : graph.blocks) {
+            var curr = block;
+            while (curr != null && placed.add(curr)) {
+                curr = curr.next;
+            }
+        }
+
+        graph.blocks.clear();
+        graph.blocks.addAll(placed);
+    }
+}
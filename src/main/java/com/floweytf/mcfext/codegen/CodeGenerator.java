@@ -1,8 +1,14 @@
 package com.floweytf.mcfext.codegen;
 
+import com.floweytf.mcfext.execution.CompiledActionList;
+import com.floweytf.mcfext.execution.ExecConfig;
+import com.floweytf.mcfext.execution.StackVerifier;
+import com.floweytf.mcfext.execution.instr.BranchInstr;
 import com.floweytf.mcfext.execution.instr.ControlInstr;
+import com.floweytf.mcfext.execution.instr.RetInstr;
+import com.floweytf.mcfext.execution.instr.SubroutineRetInstr;
 import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.ints.IntObjectPair;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.commands.ExecutionCommandSource;
 import net.minecraft.commands.execution.UnboundEntryAction;
 import net.minecraft.commands.functions.CommandFunction;
@@ -13,13 +19,18 @@ import net.minecraft.resources.ResourceLocation;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 /**
  * The main code generation class, used to emit "instructions." Supports address labels for advanced control flow
  * constructs.
+ * <p>
+ * Emitted instructions make up a {@link ControlFlowGraph}, which is optimized (see {@link CfgPasses}) and lowered to
+ * a list of instructions once the whole function has been emitted.
  */
 public class CodeGenerator<T extends ExecutionCommandSource<T>> {
     protected final FunctionBuilder<T> builder = new FunctionBuilder<>() {
@@ -42,8 +53,10 @@ public class CodeGenerator<T extends ExecutionCommandSource<T>> {
             super.addMacro(command, lineNum);
         }
     };
-    protected final List<IntObjectPair<Linkable<T>>> linkables = new ArrayList<>();
+    protected final ControlFlowGraph<T> graph = new ControlFlowGraph<>();
     private int currLabelId = 0;
+    private int features = 0;
+    private final Map<String, Label> subroutines = new LinkedHashMap<>();
 
     public Label defineLabel(String name) {
         return new Label(currLabelId++, name);
@@ -54,33 +67,41 @@ public class CodeGenerator<T extends ExecutionCommandSource<T>> {
     }
 
     public void emitPlain(UnboundEntryAction<T> instr) {
-        builder.addCommand(instr);
+        graph.add(new ControlFlowGraph.Command<>(instr));
     }
 
     public void emitControl(ControlInstr<T> instr) {
-        builder.addCommand(instr);
+        if (instr == BranchInstr.<T>exit()) {
+            graph.exit();
+        } else if (instr instanceof SubroutineRetInstr<T> || instr instanceof RetInstr<T>) {
+            graph.addTerminal(new ControlFlowGraph.Control<>(instr));
+        } else {
+            graph.add(new ControlFlowGraph.Control<>(instr));
+        }
     }
 
     public void emitControlNamed(String name, ControlInstr.StateModifier<T> instr) {
         emitControl(ControlInstr.named(name, instr));
     }
 
+    public void emitControlNamed(String name, ControlInstr.StackEffect effect, ControlInstr.StateModifier<T> instr) {
+        emitControl(ControlInstr.named(name, effect, instr));
+    }
+
     public void emitMacro(String data, int lineNo) {
-        builder.addMacro(data, lineNo);
+        graph.add(new ControlFlowGraph.Macro<>(data, lineNo));
     }
 
     public void emitMacroCustom(String data, BiFunction<StringTemplate, IntList, MacroFunction.Entry<T>> entry) {
-        builder.addMacro(data, 0);
-        // hack
-        assert builder.macroEntries != null;
-        final var lastIndex = builder.macroEntries.size() - 1;
-        final var macroEntry = (MacroFunction.MacroEntry<T>) builder.macroEntries.get(lastIndex);
-        builder.macroEntries.set(lastIndex, entry.apply(macroEntry.template, macroEntry.parameters));
+        graph.add(new ControlFlowGraph.MacroCustom<>(data, entry));
     }
 
     public void emitLinkable(Linkable<T> linkable) {
-        linkables.add(IntObjectPair.of(nextInstrIndex(), linkable));
-        (builder.plainEntries == null ? builder.macroEntries : builder.plainEntries).add(null);
+        if (linkable instanceof Linkable.Branch<T> branch) {
+            graph.jump(branch.target());
+        } else {
+            graph.add(new ControlFlowGraph.Linked<>(linkable));
+        }
     }
 
     public void emitControlLinkable(Supplier<ControlInstr<T>> gen) {
@@ -91,24 +112,200 @@ public class CodeGenerator<T extends ExecutionCommandSource<T>> {
         emitLinkable(Linkable.wrap(targets, gen));
     }
 
+    /**
+     * Tags the generated function with extra features, see {@link CompiledActionList}.
+     */
+    public void addFeatures(int features) {
+        this.features |= features;
+    }
+
+    /**
+     * Declares a subroutine, which may be called from other functions, see {@link CompiledActionList#subroutines()}.
+     */
+    public void defineSubroutine(String name, Label label) {
+        subroutines.put(name, label);
+        graph.root(label);
+    }
+
     public void emitLabel(Label label) {
-        label.offset = nextInstrIndex();
+        graph.bind(label);
     }
 
-    public int nextInstrIndex() {
-        return builder.plainEntries == null ? builder.macroEntries.size() : builder.plainEntries.size();
+    /**
+     * Called with the graph once it is built, and after each optimization pass.
+     *
+     * @param stage The pass that just ran, or {@code "build"}.
+     */
+    protected void onGraph(String stage) {
+    }
+
+    protected void lowerLabel(Label label) {
+    }
+
+    protected void lowerPlain(UnboundEntryAction<T> instr) {
+        builder.addCommand(instr);
+    }
+
+    /**
+     * @param targets The labels the instruction was linked against.
+     */
+    protected void lowerControl(UnboundEntryAction<T> instr, List<Label> targets) {
+        builder.addCommand(instr);
+    }
+
+    protected void lowerMacro(String data, int lineNo) {
+        builder.addMacro(data, lineNo);
+    }
+
+    protected void lowerMacroCustom(String data, BiFunction<StringTemplate, IntList, MacroFunction.Entry<T>> entry) {
+        builder.addMacro(data, 0);
+        // hack
+        assert builder.macroEntries != null;
+        final var lastIndex = builder.macroEntries.size() - 1;
+        final var macroEntry = (MacroFunction.MacroEntry<T>) builder.macroEntries.get(lastIndex);
+        builder.macroEntries.set(lastIndex, entry.apply(macroEntry.template, macroEntry.parameters));
+    }
+
+    private void lowerNode(ControlFlowGraph.Node<T> node) {
+        if (node instanceof ControlFlowGraph.Command<T> command) {
+            lowerPlain(command.action());
+        } else if (node instanceof ControlFlowGraph.Control<T> control) {
+            lowerControl(control.instr(), List.of());
+        } else if (node instanceof ControlFlowGraph.Linked<T> linked) {
+            lowerControl(linked.linkable().link(), linked.targets());
+        } else if (node instanceof ControlFlowGraph.Macro<T> macro) {
+            lowerMacro(macro.data(), macro.lineNo());
+        } else if (node instanceof ControlFlowGraph.MacroCustom<T> macro) {
+            lowerMacroCustom(macro.data(), macro.entry());
+        }
+    }
+
+    /**
+     * @return Whether {@code block} needs an instruction after its own to continue where it should, given the block
+     * laid out after it.
+     */
+    private static boolean needsBranch(ControlFlowGraph.Block<?> block, ControlFlowGraph.Block<?> following) {
+        return block.next != null ? block.next != following : block.exits && following != null;
+    }
+
+    /**
+     * Lowers the graph in layout order. Block offsets are assigned first, so that instructions can be linked as they
+     * are lowered.
+     */
+    private void lower() {
+        final var blocks = graph.blocks;
+
+        int offset = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            final var block = blocks.get(i);
+            block.offset = offset;
+            offset += block.nodes.size();
+
+            if (needsBranch(block, i + 1 < blocks.size() ? blocks.get(i + 1) : null)) {
+                offset++;
+            }
+        }
+
+        graph.labels.forEach((label, block) -> label.offset = block.offset);
+        final var blockLabels = graph.labelsByBlock();
+
+        for (int i = 0; i < blocks.size(); i++) {
+            final var block = blocks.get(i);
+            blockLabels.getOrDefault(block, List.of()).forEach(this::lowerLabel);
+            block.nodes.forEach(this::lowerNode);
+
+            if (needsBranch(block, i + 1 < blocks.size() ? blocks.get(i + 1) : null)) {
+                lowerControl(block.next != null ? new BranchInstr<>(block.next.offset) : BranchInstr.exit(), List.of());
+            }
+        }
     }
 
     public CommandFunction<T> define(ResourceLocation id) {
-        // linking :3
-        for (var linkableInfo : linkables) {
-            if (builder.plainEntries != null) {
-                builder.plainEntries.set(linkableInfo.firstInt(), linkableInfo.second().link());
-            } else {
-                assert builder.macroEntries != null;
-                builder.macroEntries.set(linkableInfo.firstInt(),
-                    new MacroFunction.PlainTextEntry<>(linkableInfo.second().link()));
+        graph.finish();
+        onGraph("build");
+
+        if (ExecConfig.OPTIMIZE_CFG) {
+            for (final var pass : CfgPasses.PASSES) {
+                pass.pass().accept(graph);
+                onGraph(pass.name());
+            }
+        }
+
+        lower();
+        return build(id);
+    }
+
+    /**
+     * Stores the lowered actions of a plain function in a {@link CompiledActionList}, tagged with the features they
+     * use and the entries of their subroutines, and verifies their stack usage. Control instructions are then fused,
+     * see {@link InstrFusion}.
+     *
+     * @throws StackVerifier.VerifyException If the generated code is malformed.
+     */
+    private CompiledActionList<T> compile(ResourceLocation id, List<UnboundEntryAction<T>> entries) {
+        final var actions = new CompiledActionList<>(entries);
+        actions.addFeatures(features);
+
+        final var subroutineEntries = new Object2IntOpenHashMap<String>();
+        subroutines.forEach((name, label) -> subroutineEntries.put(name, label.offset()));
+        actions.setSubroutines(subroutineEntries);
+
+        if (CompiledActionList.hasFeature(actions, CompiledActionList.CONTROL_FLOW) &&
+            StackVerifier.verify(actions, subroutineEntries.values()) == StackVerifier.Result.VERIFIED) {
+            actions.addFeatures(CompiledActionList.VERIFIED);
+        }
+
+        // Fused instructions verify as their first part, so fusion must come after verification
+        if (CompiledActionList.hasFeature(actions, CompiledActionList.CONTROL_FLOW)) {
+            InstrFusion.fuse(id, actions);
+        }
+
+        return actions;
+    }
+
+    /**
+     * Lowers the graph again, with commands replaced, see {@link CompiledActionList.Relinker}.
+     */
+    private void relink(ResourceLocation id, CompiledActionList<T> actions,
+                        Map<UnboundEntryAction<T>, List<UnboundEntryAction<T>>> replacements) {
+        for (final var block : graph.blocks) {
+            final var nodes = new ArrayList<ControlFlowGraph.Node<T>>(block.nodes.size());
+
+            for (final var node : block.nodes) {
+                final var replacement = node instanceof ControlFlowGraph.Command<T> command ?
+                    replacements.get(command.action()) : null;
+
+                if (replacement == null) {
+                    nodes.add(node);
+                } else {
+                    replacement.forEach(action -> nodes.add(new ControlFlowGraph.Command<>(action)));
+                }
             }
+
+            block.nodes.clear();
+            block.nodes.addAll(nodes);
+        }
+
+        builder.plainEntries = new ArrayList<>();
+        lower();
+        actions.replaceWith(compile(id, builder.plainEntries));
+    }
+
+    /**
+     * Builds the linked function, see {@link #compile}. Functions using control flow keep their graph around to be
+     * relinked until every function is linked, since their instructions can't be moved once linked.
+     *
+     * @throws StackVerifier.VerifyException If the generated code is malformed.
+     */
+    protected CommandFunction<T> build(ResourceLocation id) {
+        if (builder.plainEntries != null) {
+            final var actions = compile(id, builder.plainEntries);
+
+            if (CompiledActionList.hasFeature(actions, CompiledActionList.CONTROL_FLOW)) {
+                actions.setRelinker(replacements -> relink(id, actions, replacements));
+            }
+
+            builder.plainEntries = actions;
         }
 
         return builder.build(id);
@@ -0,0 +1,305 @@
+package com.floweytf.mcfext.codegen;
+
+import com.floweytf.mcfext.execution.instr.ControlInstr;
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.minecraft.commands.execution.UnboundEntryAction;
+import net.minecraft.commands.functions.MacroFunction;
+import net.minecraft.commands.functions.StringTemplate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Intermediate representation of a function, between its AST and the list of instructions it is lowered to: a graph
+ * of basic blocks, each a run of instructions only ever entered at its start, with explicit edges between them.
+ * <p>
+ * The graph is built by {@link CodeGenerator} as the AST is emitted. Labels start new blocks, while unconditional
+ * branches, exits and instructions that never fall through (returns) end them. Other instructions are opaque: the
+ * labels they are linked against (see {@link Linkable#targets()}) are the blocks they may jump to, and they are assumed
+ * to fall through otherwise. Since instructions read the offsets of their labels when linked, labels are the only way
+ * an instruction refers to a block, and passes may move a label to another (equivalent) block.
+ * <p>
+ * Blocks are kept in layout order, which is the order they are lowered in. A block continuing at a block that isn't
+ * laid out right after it gets an explicit branch when lowered. See {@link CfgPasses} for the optimization passes.
+ */
+public final class ControlFlowGraph<T> {
+    /**
+     * An instruction in a block.
+     */
+    public interface Node<T> {
+        /**
+         * @return The labels this instruction may jump to.
+         */
+        default List<Label> targets() {
+            return List.of();
+        }
+    }
+
+    public record Command<T>(UnboundEntryAction<T> action) implements Node<T> {
+    }
+
+    public record Control<T>(ControlInstr<T> instr) implements Node<T> {
+    }
+
+    /**
+     * An instruction linked once the offsets of its labels are known.
+     */
+    public record Linked<T>(Linkable<T> linkable) implements Node<T> {
+        @Override
+        public List<Label> targets() {
+            return linkable.targets();
+        }
+    }
+
+    public record Macro<T>(String data, int lineNo) implements Node<T> {
+    }
+
+    public record MacroCustom<T>(
+        String data, BiFunction<StringTemplate, IntList, MacroFunction.Entry<T>> entry
+    ) implements Node<T> {
+    }
+
+    public static final class Block<T> {
+        final int id;
+        final List<Node<T>> nodes = new ArrayList<>();
+        /**
+         * The block execution continues at after the last instruction, if any.
+         */
+        @Nullable
+        Block<T> next;
+        /**
+         * Whether the function exits after the last instruction. If neither this nor {@link #next} is set, the last
+         * instruction never falls through.
+         */
+        boolean exits;
+        // Only used while building
+        @Nullable
+        Label jump;
+        boolean sealed;
+        // Only used while lowering
+        int offset;
+
+        private Block(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return "b" + id;
+        }
+    }
+
+    final List<Block<T>> blocks = new ArrayList<>();
+    final Map<Label, Block<T>> labels = new LinkedHashMap<>();
+    /**
+     * Labels entered from outside the function's own control flow (subroutines), which must stay where they are.
+     */
+    final Set<Label> roots = new LinkedHashSet<>();
+    private int nextBlockId = 0;
+    private Block<T> current;
+
+    ControlFlowGraph() {
+        current = newBlock();
+    }
+
+    private Block<T> newBlock() {
+        final var block = new Block<T>(nextBlockId++);
+        blocks.add(block);
+        return block;
+    }
+
+    /**
+     * @return The block to add instructions to. Instructions following a block that doesn't fall through go to a new
+     * block, which is unreachable unless it is labelled later on.
+     */
+    private Block<T> open() {
+        if (current.sealed) {
+            current = newBlock();
+        }
+
+        return current;
+    }
+
+    void add(Node<T> node) {
+        open().nodes.add(node);
+    }
+
+    /**
+     * Adds an instruction that never falls through.
+     */
+    void addTerminal(Node<T> node) {
+        open().nodes.add(node);
+        current.sealed = true;
+    }
+
+    void bind(Label label) {
+        if (current.sealed || !current.nodes.isEmpty()) {
+            final var block = newBlock();
+
+            if (!current.sealed) {
+                current.next = block;
+                current.sealed = true;
+            }
+
+            current = block;
+        }
+
+        labels.put(label, current);
+    }
+
+    void jump(Label label) {
+        open().jump = label;
+        current.sealed = true;
+    }
+
+    void exit() {
+        open().exits = true;
+        current.sealed = true;
+    }
+
+    void root(Label label) {
+        roots.add(label);
+    }
+
+    /**
+     * Ends the function, and resolves branches.
+     */
+    void finish() {
+        // Falling off the end of the function exits it
+        if (!current.sealed) {
+            current.exits = true;
+            current.sealed = true;
+        }
+
+        for (final var block : blocks) {
+            if (block.jump != null) {
+                block.next = labels.get(block.jump);
+
+                if (block.next == null) {
+                    throw new IllegalStateException("Branching to label " + block.jump + " which is never emitted");
+                }
+
+                block.jump = null;
+            }
+        }
+    }
+
+    Block<T> entry() {
+        return blocks.get(0);
+    }
+
+    /**
+     * @return The blocks control may be transferred to directly from outside the function's control flow: the entry,
+     * and the subroutines.
+     */
+    List<Block<T>> rootBlocks() {
+        final var res = new ArrayList<Block<T>>();
+        res.add(entry());
+        roots.forEach(label -> res.add(labels.get(label)));
+        return res;
+    }
+
+    void forEachSuccessor(Block<T> block, Consumer<Block<T>> consumer) {
+        if (block.next != null) {
+            consumer.accept(block.next);
+        }
+
+        for (final var node : block.nodes) {
+            for (final var label : node.targets()) {
+                final var target = labels.get(label);
+
+                if (target != null) {
+                    consumer.accept(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The blocks whose address is used by an instruction or from outside the function, rather than only being
+     * reached by falling through or branching.
+     */
+    Set<Block<T>> addressedBlocks() {
+        final var res = new HashSet<Block<T>>(rootBlocks());
+
+        for (final var block : blocks) {
+            for (final var node : block.nodes) {
+                node.targets().forEach(label -> res.add(labels.get(label)));
+            }
+        }
+
+        return res;
+    }
+
+    Set<Block<T>> reachableBlocks() {
+        final var reachable = new HashSet<Block<T>>(rootBlocks());
+        final var worklist = new ArrayDeque<>(reachable);
+
+        while (!worklist.isEmpty()) {
+            forEachSuccessor(worklist.pop(), successor -> {
+                if (reachable.add(successor)) {
+                    worklist.push(successor);
+                }
+            });
+        }
+
+        return reachable;
+    }
+
+    Map<Block<T>, List<Label>> labelsByBlock() {
+        final var res = new HashMap<Block<T>, List<Label>>();
+        labels.forEach((label, block) -> res.computeIfAbsent(block, k -> new ArrayList<>()).add(label));
+        return res;
+    }
+
+    public String dump() {
+        final var builder = new StringBuilder();
+        final var blockLabels = labelsByBlock();
+
+        for (final var block : blocks) {
+            builder.append(block);
+            blockLabels.getOrDefault(block, List.of()).forEach(label -> builder.append(" ").append(label));
+            builder.append(":\n");
+
+            for (final var node : block.nodes) {
+                builder.append("  ");
+
+                if (node instanceof Command<T> command) {
+                    builder.append("RUN ").append(command.action());
+                } else if (node instanceof Control<T> control) {
+                    builder.append(control.instr());
+                } else if (node instanceof Macro<T> macro) {
+                    builder.append("MACRO ").append(macro.data());
+                } else if (node instanceof MacroCustom<T> macro) {
+                    builder.append("MACRO ").append(macro.data());
+                } else {
+                    builder.append("LINK");
+                }
+
+                for (final var label : node.targets()) {
+                    builder.append(" ").append(label).append("->").append(labels.get(label));
+                }
+
+                builder.append("\n");
+            }
+
+            if (block.next != null) {
+                builder.append("  -> ").append(block.next).append("\n");
+            } else if (block.exits) {
+                builder.append("  -> exit\n");
+            }
+        }
+
+        return builder.toString();
+    }
+}
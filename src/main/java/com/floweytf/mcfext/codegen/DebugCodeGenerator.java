@@ -1,82 +1,56 @@
 package com.floweytf.mcfext.codegen;
 
-import com.floweytf.mcfext.execution.instr.ControlInstr;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
 import net.minecraft.commands.ExecutionCommandSource;
 import net.minecraft.commands.execution.UnboundEntryAction;
-import net.minecraft.commands.functions.CommandFunction;
 import net.minecraft.commands.functions.MacroFunction;
 import net.minecraft.commands.functions.StringTemplate;
-import net.minecraft.resources.ResourceLocation;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.function.BiFunction;
 
 public class DebugCodeGenerator<T extends ExecutionCommandSource<T>> extends CodeGenerator<T> {
+    private final List<String> graphs = new ArrayList<>();
     private final List<String> disassembly = new ArrayList<>();
-    private final IntList linkableDisassemblyIndex = new IntArrayList();
 
     @Override
-    public void emitControl(ControlInstr<T> instr) {
-        disassembly.add("  " + instr);
-        super.emitControl(instr);
+    protected void onGraph(String stage) {
+        graphs.add("IR after " + stage + ":\n" + graph.dump());
     }
 
     @Override
-    public void emitLabel(Label label) {
+    protected void lowerLabel(Label label) {
         disassembly.add(label + ":");
-        super.emitLabel(label);
+        super.lowerLabel(label);
     }
 
     @Override
-    public void emitLinkable(Linkable<T> linkable) {
-        // Logic here is a bit cursed
-        linkableDisassemblyIndex.add(disassembly.size());
-        disassembly.add(null);
-        super.emitLinkable(linkable);
+    protected void lowerPlain(UnboundEntryAction<T> instr) {
+        disassembly.add("  RUN " + instr);
+        super.lowerPlain(instr);
     }
 
     @Override
-    public void emitMacro(String data, int lineNo) {
-        disassembly.add("  MACRO " + data);
-        super.emitMacro(data, lineNo);
+    protected void lowerControl(UnboundEntryAction<T> instr, List<Label> targets) {
+        disassembly.add(targets.isEmpty() ? "  " + instr : "  " + instr + " [" + String.join(", ",
+            targets.stream().map(Label::toString).toList()) + "]");
+        super.lowerControl(instr, targets);
     }
 
     @Override
-    public void emitMacroCustom(String data, BiFunction<StringTemplate, IntList, MacroFunction.Entry<T>> entry) {
+    protected void lowerMacro(String data, int lineNo) {
         disassembly.add("  MACRO " + data);
-        super.emitMacroCustom(data, entry);
-    }
-
-    @Override
-    public void emitPlain(UnboundEntryAction<T> instr) {
-        disassembly.add("  RUN " + instr);
-        super.emitPlain(instr);
+        super.lowerMacro(data, lineNo);
     }
 
     @Override
-    public CommandFunction<T> define(ResourceLocation id) {
-        // linking :3
-        for (int i = 0; i < linkables.size(); i++) {
-            var linkableInfo = linkables.get(i);
-            final var result = linkableInfo.second().link();
-
-            if (builder.plainEntries != null) {
-                builder.plainEntries.set(linkableInfo.firstInt(), result);
-            } else {
-                builder.macroEntries.set(linkableInfo.firstInt(), new MacroFunction.PlainTextEntry<>(result));
-            }
-
-            disassembly.set(linkableDisassemblyIndex.getInt(i), "  " + result + " [" + String.join(", ",
-                linkableInfo.second().targets().stream().map(Label::toString).toList()) + "]");
-        }
-
-        return builder.build(id);
+    protected void lowerMacroCustom(String data, BiFunction<StringTemplate, IntList, MacroFunction.Entry<T>> entry) {
+        disassembly.add("  MACRO " + data);
+        super.lowerMacroCustom(data, entry);
     }
 
     public String dumpDisassembly() {
-        return String.join("\n", disassembly);
+        return String.join("\n", graphs) + "\nLowered:\n" + String.join("\n", disassembly);
     }
 }
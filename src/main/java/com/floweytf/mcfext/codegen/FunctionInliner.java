@@ -0,0 +1,217 @@
+package com.floweytf.mcfext.codegen;
+
+import com.floweytf.mcfext.execution.CompiledActionList;
+import com.floweytf.mcfext.execution.ExecConfig;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.tree.LiteralCommandNode;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.execution.UnboundEntryAction;
+import net.minecraft.commands.execution.tasks.BuildContexts;
+import net.minecraft.commands.functions.CommandFunction;
+import net.minecraft.commands.functions.PlainTextFunction;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.ServerFunctionLibrary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inlines static calls (see {@link CallLinker}) to small functions, and to functions only called once, once every
+ * function of a (re)loaded {@link ServerFunctionLibrary} has been compiled. The call is replaced with the commands of
+ * the called function, which saves the frame and the lookup of the call.
+ * <p>
+ * Only functions made of plain commands are inlined: functions using control flow, macros or {@code return} (which
+ * would return from the caller instead) are not, and neither are recursive functions. Inlining is a single level deep,
+ * from the bodies functions were compiled with. Callers using control flow are lowered again from their graph (see
+ * {@link CompiledActionList.Relinker}), since their instructions refer to each other by address.
+ * <p>
+ * Functions compiled with {@code pragma enable noinline} are neither inlined nor inlined into. What was inlined is
+ * recorded in the {@link InlineReport}.
+ */
+public final class FunctionInliner {
+    private static final Logger LOGGER = LogManager.getLogger("FunctionInliner");
+
+    private FunctionInliner() {
+    }
+
+    @Nullable
+    private static CompiledActionList<CommandSourceStack> actionsOf(CommandFunction<CommandSourceStack> function) {
+        if (function instanceof PlainTextFunction<CommandSourceStack> plain &&
+            plain.entries() instanceof CompiledActionList<CommandSourceStack> actions) {
+            return actions;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The function called by {@code action}, if it is a static call to a function.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static ResourceLocation callee(UnboundEntryAction<CommandSourceStack> action) {
+        if (!(action instanceof BuildContexts.Unbound<?> command)) {
+            return null;
+        }
+
+        final var text = CallLinker.staticCallTarget((BuildContexts.Unbound<CommandSourceStack>) command);
+        return text == null || text.startsWith("#") ? null : ResourceLocation.tryParse(text);
+    }
+
+    private static boolean usesReturn(BuildContexts.Unbound<?> command) {
+        for (CommandContext<?> context = command.command.getTopContext(); context != null;
+             context = context.getChild()) {
+            for (final var node : context.getNodes()) {
+                if (node.getNode() instanceof LiteralCommandNode<?> literal && literal.getLiteral().equals("return")) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return Whether {@code actions} may be inlined into its callers, ignoring its size and recursion.
+     */
+    private static boolean isInlinable(CompiledActionList<CommandSourceStack> actions) {
+        if (CompiledActionList.hasFeature(actions, CompiledActionList.CONTROL_FLOW) ||
+            CompiledActionList.hasFeature(actions, CompiledActionList.TIME_SLICED) ||
+            CompiledActionList.hasFeature(actions, CompiledActionList.NO_INLINE)) {
+            return false;
+        }
+
+        for (final var action : actions) {
+            if (!(action instanceof BuildContexts.Unbound<?> command) || usesReturn(command)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Whether {@code target} may be called (directly or not) by {@code from}.
+     */
+    private static boolean reaches(Map<ResourceLocation, Set<ResourceLocation>> callees, ResourceLocation from,
+                                   ResourceLocation target, Set<ResourceLocation> seen) {
+        for (final var callee : callees.getOrDefault(from, Set.of())) {
+            if (callee.equals(target) || (seen.add(callee) && reaches(callees, callee, target, seen))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Inlines calls between the compiled functions of {@code library}.
+     */
+    public static void inline(ServerFunctionLibrary library) {
+        if (ExecConfig.INLINE_MAX_SIZE == 0 && ExecConfig.INLINE_SINGLE_USE_MAX_SIZE == 0) {
+            return;
+        }
+
+        final var functions = new LinkedHashMap<ResourceLocation, CompiledActionList<CommandSourceStack>>();
+        library.getFunctions().forEach((id, function) -> {
+            final var actions = actionsOf(function);
+            if (actions != null) {
+                functions.put(id, actions);
+            }
+        });
+
+        // The static call graph, and how often each function is called
+        final var callees = new HashMap<ResourceLocation, Set<ResourceLocation>>();
+        final var callSites = new Object2IntOpenHashMap<ResourceLocation>();
+        functions.forEach((id, actions) -> {
+            final var calls = new HashSet<ResourceLocation>();
+
+            for (final var action : actions) {
+                final var callee = callee(action);
+                if (callee != null) {
+                    calls.add(callee);
+                    callSites.addTo(callee, 1);
+                }
+            }
+
+            callees.put(id, calls);
+        });
+
+        // The bodies to inline, copied since callers are changed in place
+        final var bodies = new HashMap<ResourceLocation, List<UnboundEntryAction<CommandSourceStack>>>();
+        functions.forEach((id, actions) -> {
+            final var isSmall = actions.size() <= ExecConfig.INLINE_MAX_SIZE;
+            final var isSingleUse = callSites.getInt(id) == 1 &&
+                actions.size() <= ExecConfig.INLINE_SINGLE_USE_MAX_SIZE;
+
+            if ((isSmall || isSingleUse) && isInlinable(actions) && !reaches(callees, id, id, new HashSet<>())) {
+                bodies.put(id, List.copyOf(actions));
+            }
+        });
+
+        if (bodies.isEmpty()) {
+            return;
+        }
+
+        int sites = 0;
+        int callers = 0;
+
+        for (final var entry : functions.entrySet()) {
+            final var actions = entry.getValue();
+            if (CompiledActionList.hasFeature(actions, CompiledActionList.NO_INLINE)) {
+                continue;
+            }
+
+            final Map<UnboundEntryAction<CommandSourceStack>, List<UnboundEntryAction<CommandSourceStack>>>
+                replacements = new IdentityHashMap<>();
+            final var inlined = new Object2IntOpenHashMap<ResourceLocation>();
+
+            for (final var action : actions) {
+                final var callee = callee(action);
+                final var body = callee == null ? null : bodies.get(callee);
+
+                if (body != null) {
+                    replacements.put(action, body);
+                    inlined.addTo(callee, 1);
+                }
+            }
+
+            if (replacements.isEmpty()) {
+                continue;
+            }
+
+            if (CompiledActionList.hasFeature(actions, CompiledActionList.CONTROL_FLOW)) {
+                final var relinker = actions.relinker();
+                if (relinker == null) {
+                    continue;
+                }
+
+                relinker.relink(replacements);
+            } else {
+                final var entries = new ArrayList<UnboundEntryAction<CommandSourceStack>>(actions.size());
+                for (final var action : actions) {
+                    entries.addAll(replacements.getOrDefault(action, List.of(action)));
+                }
+
+                actions.clear();
+                actions.addAll(entries);
+            }
+
+            inlined.forEach((callee, count) -> InlineReport.add(entry.getKey(), "function " + callee, count));
+            sites += inlined.values().intStream().sum();
+            callers++;
+        }
+
+        LOGGER.info("Inlined {} function calls into {} functions", sites, callers);
+    }
+}
@@ -0,0 +1,67 @@
+package com.floweytf.mcfext.codegen;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The calls inlined by the last reload, by caller. Subroutines are inlined when their function is compiled (see
+ * {@link com.floweytf.mcfext.parse.ast.subroutine.SubroutineCallAST}), and functions once every function is loaded
+ * (see {@link FunctionInliner}).
+ */
+public final class InlineReport {
+    // Functions are compiled in parallel on reload
+    private static final Map<ResourceLocation, Object2IntOpenHashMap<String>> INLINED = new ConcurrentHashMap<>();
+
+    private InlineReport() {
+    }
+
+    /**
+     * Records {@code count} call sites of {@code callee} inlined into {@code caller}.
+     */
+    public static void add(ResourceLocation caller, String callee, int count) {
+        INLINED.compute(caller, (id, callees) -> {
+            final var res = callees == null ? new Object2IntOpenHashMap<String>() : callees;
+            res.addTo(callee, count);
+            return res;
+        });
+    }
+
+    /**
+     * @return The total number of inlined call sites.
+     */
+    public static int total() {
+        return INLINED.values().stream().mapToInt(callees -> callees.values().intStream().sum()).sum();
+    }
+
+    /**
+     * @return A line per caller, listing what was inlined into it.
+     */
+    public static List<String> describe() {
+        final var res = new ArrayList<String>();
+
+        INLINED.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey(Comparator.comparing(ResourceLocation::toString)))
+            .forEach(entry -> {
+                final var callees = entry.getValue().object2IntEntrySet().stream()
+                    .map(callee -> callee.getKey() + " x" + callee.getIntValue())
+                    .sorted()
+                    .toList();
+                res.add(entry.getKey() + ": " + String.join(", ", callees));
+            });
+
+        return res;
+    }
+
+    /**
+     * Clears the report, before functions are reloaded.
+     */
+    public static void clear() {
+        INLINED.clear();
+    }
+}
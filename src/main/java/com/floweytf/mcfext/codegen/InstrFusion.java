@@ -0,0 +1,105 @@
+package com.floweytf.mcfext.codegen;
+
+import com.floweytf.mcfext.execution.instr.ControlInstr;
+import com.floweytf.mcfext.execution.instr.FusedInstr;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.commands.execution.UnboundEntryAction;
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Link-time fusion of control instructions into superinstructions, see {@link FusedInstr}.
+ * <p>
+ * Starting from every control instruction, the pass follows {@link ControlInstr#successor} for as long as it lands on
+ * another control instruction, up to {@link #MAX_PARTS} instructions. Traces longer than one instruction replace their
+ * first instruction with a {@link FusedInstr}. Since traces follow branches and calls, this also covers sequences that
+ * aren't adjacent in the function, such as a {@code builtin::br} back to the head of a {@code run} loop.
+ * <p>
+ * Every fused trace is recorded in a per-function census, which is reported by {@code /mcfext census}.
+ */
+public final class InstrFusion {
+    public static final int MAX_PARTS = 3;
+
+    // Functions are compiled in parallel on reload
+    private static final Map<ResourceLocation, Object2IntMap<String>> CENSUS = new ConcurrentHashMap<>();
+
+    private InstrFusion() {
+    }
+
+    private static String opcode(ControlInstr<?> instr) {
+        final var name = instr.toString();
+        final var bracket = name.indexOf('[');
+        return bracket == -1 ? name : name.substring(0, bracket);
+    }
+
+    /**
+     * Fuses the control instructions of a linked function in place.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void fuse(ResourceLocation id, List<UnboundEntryAction<T>> actions) {
+        final var census = new Object2IntOpenHashMap<String>();
+        // Traces are built from the original instructions, not from previously fused ones
+        final var original = new ArrayList<>(actions);
+
+        final var parts = new ArrayList<ControlInstr<T>>(MAX_PARTS);
+        final var addresses = new IntArrayList(MAX_PARTS);
+
+        for (int i = 0; i < original.size(); i++) {
+            parts.clear();
+            addresses.clear();
+
+            var next = i;
+            while (parts.size() < MAX_PARTS && next >= 0 && next < original.size() && !addresses.contains(next) &&
+                original.get(next) instanceof ControlInstr<T> instr) {
+                parts.add(instr);
+                addresses.add(next);
+                next = instr.successor(next);
+            }
+
+            if (parts.size() < 2) {
+                continue;
+            }
+
+            actions.set(i, new FusedInstr<>(parts.toArray(ControlInstr[]::new), addresses.toIntArray()));
+
+            var key = opcode(parts.get(0));
+            for (int j = 1; j < parts.size(); j++) {
+                key += " + " + opcode(parts.get(j));
+                census.addTo(key, 1);
+            }
+        }
+
+        CENSUS.put(id, census);
+    }
+
+    /**
+     * @param limit The maximum number of entries to return.
+     * @return The most common fused sequences across all loaded functions, most common first.
+     */
+    public static List<String> census(int limit) {
+        final var total = new Object2IntOpenHashMap<String>();
+        CENSUS.values().forEach(census -> census.object2IntEntrySet().forEach(
+            entry -> total.addTo(entry.getKey(), entry.getIntValue())
+        ));
+
+        return total.object2IntEntrySet().stream()
+            .sorted(Comparator.comparingInt(Object2IntMap.Entry<String>::getIntValue).reversed())
+            .limit(limit)
+            .map(entry -> entry.getIntValue() + "x " + entry.getKey())
+            .toList();
+    }
+
+    /**
+     * Clears the census, before functions are reloaded.
+     */
+    public static void clearCensus() {
+        CENSUS.clear();
+    }
+}
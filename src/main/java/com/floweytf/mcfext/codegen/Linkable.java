@@ -10,6 +10,21 @@ import java.util.List;
 import java.util.function.Supplier;
 
 public interface Linkable<T> {
+    /**
+     * An unconditional branch, which ends its block in the {@link ControlFlowGraph}.
+     */
+    record Branch<T>(Label target) implements Linkable<T> {
+        @Override
+        public List<Label> targets() {
+            return List.of(target);
+        }
+
+        @Override
+        public UnboundEntryAction<T> link() {
+            return new BranchInstr<>(target.offset());
+        }
+    }
+
     default List<Label> targets() {
         return List.of();
     }
@@ -21,7 +36,7 @@ public interface Linkable<T> {
     }
 
     static <T> Linkable<T> branch(Label target) {
-        return wrap(List.of(target), () -> new BranchInstr<T>(target.offset()));
+        return new Branch<>(target);
     }
 
     static <T> Linkable<T> pushInstrAddr(Label target) {
@@ -0,0 +1,67 @@
+package com.floweytf.mcfext.command;
+
+import com.floweytf.mcfext.codegen.InlineReport;
+import com.floweytf.mcfext.codegen.InstrFusion;
+import com.floweytf.mcfext.execution.ExecStats;
+import com.floweytf.mcfext.execution.FuncExecScheduler;
+import com.mojang.brigadier.CommandDispatcher;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.network.chat.Component;
+
+import java.util.List;
+
+import static com.floweytf.mcfext.util.CommandUtil.*;
+
+/**
+ * The {@code /mcfext} command, used to inspect the function execution runtime.
+ */
+public class MCFExtCommand {
+    private static final int CENSUS_ENTRIES = 20;
+
+    public static void register(CommandDispatcher<CommandSourceStack> dispatcher) {
+        dispatcher.register(mcLitPred(
+            "mcfext",
+            source -> source.hasPermission(2),
+            mcLit("stats", context -> {
+                context.getSource().sendSuccess(() -> Component.literal(ExecStats.dump()), false);
+                return 0;
+            }, mcLit("reset", context -> {
+                ExecStats.reset();
+                context.getSource().sendSuccess(() -> Component.literal("Reset execution stats"), false);
+                return 0;
+            })),
+            mcLit("suspended", context -> {
+                final var scheduler = FuncExecScheduler.of(context.getSource());
+                final var entries = scheduler == null ? List.<String>of() : scheduler.describe();
+
+                context.getSource().sendSuccess(
+                    () -> Component.literal(entries.size() + " suspended/parked functions" +
+                        (entries.isEmpty() ? "" : ":\n" + String.join("\n", entries))),
+                    false
+                );
+                return entries.size();
+            }),
+            mcLit("census", context -> {
+                final var entries = InstrFusion.census(CENSUS_ENTRIES);
+
+                context.getSource().sendSuccess(
+                    () -> Component.literal("Most common fused control instruction sequences:\n" +
+                        String.join("\n", entries)),
+                    false
+                );
+                return entries.size();
+            }),
+            mcLit("inlined", context -> {
+                final var entries = InlineReport.describe();
+                final var total = InlineReport.total();
+
+                context.getSource().sendSuccess(
+                    () -> Component.literal(total + " inlined call sites" +
+                        (entries.isEmpty() ? "" : ":\n" + String.join("\n", entries))),
+                    false
+                );
+                return total;
+            })
+        ));
+    }
+}
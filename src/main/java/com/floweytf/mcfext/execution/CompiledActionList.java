@@ -0,0 +1,183 @@
+package com.floweytf.mcfext.execution;
+
+import com.floweytf.mcfext.execution.instr.ControlInstr;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMaps;
+import net.minecraft.commands.execution.UnboundEntryAction;
+import net.minecraft.resources.ResourceLocation;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The action list of a compiled function, tagged with the features it uses. This is what
+ * {@code PlainTextFunction#entries()} returns for functions produced by the compiler, so the runtime can pick the
+ * cheapest way to execute a function when it is called.
+ * <p>
+ * Lists that did not come out of the compiler (such as instantiated macro functions) carry no tags; use
+ * {@link #featuresOf(List)}, which falls back to scanning the list.
+ * <p>
+ * Compiled lists also count how often they are run by the engine, and once they get hot (see
+ * {@link ExecConfig#TIER2_THRESHOLD}), hold the function compiled by the {@link TieredCompiler}.
+ * <p>
+ * Until every function is linked, lists using control flow also keep a {@link Relinker}, since their instructions
+ * can't be moved around once linked.
+ *
+ * @param <T> The command source type.
+ */
+public class CompiledActionList<T> extends ArrayList<UnboundEntryAction<T>> {
+    /**
+     * Rebuilds a function from its code generator.
+     */
+    public interface Relinker<T> {
+        /**
+         * Rebuilds the function in place, with each command in {@code replacements} replaced by a list of commands.
+         *
+         * @param replacements The commands to replace, by identity.
+         */
+        void relink(Map<UnboundEntryAction<T>, List<UnboundEntryAction<T>>> replacements);
+    }
+
+    /**
+     * The function contains at least one {@link ControlInstr}, and thus needs a {@link FuncExecState} to run.
+     */
+    public static final int CONTROL_FLOW = 1;
+    /**
+     * The function was compiled with {@code pragma enable time_slice}, and may be spread over several ticks.
+     *
+     * @see FuncExecScheduler
+     */
+    public static final int TIME_SLICED = 2;
+    /**
+     * The function passed the {@link StackVerifier}, and may run with an unchecked stack.
+     */
+    public static final int VERIFIED = 4;
+    /**
+     * The function was compiled with {@code pragma enable noinline}, and takes no part in inlining.
+     *
+     * @see com.floweytf.mcfext.codegen.FunctionInliner
+     */
+    public static final int NO_INLINE = 8;
+    /**
+     * Features that need the function to run through {@link FuncExecTask}.
+     */
+    public static final int ENGINE_FEATURES = CONTROL_FLOW | TIME_SLICED;
+
+    private int features;
+    private Object2IntMap<String> subroutines = Object2IntMaps.emptyMap();
+    // Counts invocations up to the threshold, then -1 once compiled (or given up on)
+    private int invocations;
+    @Nullable
+    private TieredCompiler.Body<T> tier2;
+    @Nullable
+    private Relinker<T> relinker;
+
+    public CompiledActionList(Collection<? extends UnboundEntryAction<T>> actions) {
+        super(actions);
+        this.features = scan(this);
+    }
+
+    private static int scan(List<? extends UnboundEntryAction<?>> actions) {
+        for (final var action : actions) {
+            if (action instanceof ControlInstr<?>) {
+                return CONTROL_FLOW;
+            }
+        }
+
+        return 0;
+    }
+
+    public static int featuresOf(List<? extends UnboundEntryAction<?>> actions) {
+        if (actions instanceof CompiledActionList<?> compiled) {
+            return compiled.features;
+        }
+
+        return scan(actions);
+    }
+
+    public static boolean hasFeature(List<? extends UnboundEntryAction<?>> actions, int feature) {
+        return (featuresOf(actions) & feature) != 0;
+    }
+
+    public static boolean needsEngine(List<? extends UnboundEntryAction<?>> actions) {
+        return (featuresOf(actions) & ENGINE_FEATURES) != 0;
+    }
+
+    public int features() {
+        return features;
+    }
+
+    public void addFeatures(int features) {
+        this.features |= features;
+    }
+
+    public void removeFeatures(int features) {
+        this.features &= ~features;
+    }
+
+    /**
+     * @return The entry of every subroutine defined by the function, by name. These may be called from other functions,
+     * see {@code import}.
+     */
+    public Object2IntMap<String> subroutines() {
+        return subroutines;
+    }
+
+    public void setSubroutines(Object2IntMap<String> subroutines) {
+        this.subroutines = subroutines;
+    }
+
+    @Nullable
+    public Relinker<T> relinker() {
+        return relinker;
+    }
+
+    public void setRelinker(@Nullable Relinker<T> relinker) {
+        this.relinker = relinker;
+    }
+
+    /**
+     * Replaces the contents of this list with those of {@code other}, when the function is relinked.
+     */
+    public void replaceWith(CompiledActionList<T> other) {
+        clear();
+        addAll(other);
+        features = other.features;
+        subroutines = other.subroutines;
+    }
+
+    /**
+     * Counts an invocation of the function, compiling it once it gets hot.
+     *
+     * @param id The id of the function, for diagnostics.
+     * @return The compiled function, or {@code null} if it should be interpreted.
+     */
+    @Nullable
+    public TieredCompiler.Body<T> tier2(ResourceLocation id) {
+        if (invocations >= 0 && ExecConfig.TIER2_THRESHOLD > 0 && ++invocations >= ExecConfig.TIER2_THRESHOLD) {
+            invocations = -1;
+            tier2 = TieredCompiler.compile(id, this);
+        }
+
+        return tier2;
+    }
+
+    /**
+     * Drops the compiled function, after it misbehaved. The function is interpreted from now on.
+     */
+    public void deoptimize() {
+        invocations = -1;
+        tier2 = null;
+    }
+
+    /**
+     * @see #tier2(ResourceLocation)
+     */
+    @Nullable
+    public static <T> TieredCompiler.Body<T> tier2Of(ResourceLocation id, List<UnboundEntryAction<T>> actions) {
+        return actions instanceof CompiledActionList<T> compiled ? compiled.tier2(id) : null;
+    }
+}
\ No newline at end of file
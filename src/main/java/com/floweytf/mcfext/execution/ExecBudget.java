@@ -0,0 +1,83 @@
+package com.floweytf.mcfext.execution;
+
+import net.minecraft.commands.execution.ExecutionContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Per-{@link ExecutionContext} accounting of control instructions.
+ * <p>
+ * Control instructions ({@code builtin::br}, {@code subroutine::call}, ...) are bookkeeping rather than real work, so
+ * they are charged against their own budget ({@link ExecConfig#CONTROL_LIMIT}) instead of vanilla's
+ * {@code maxCommandChainLength}. Optionally, every {@link ExecConfig#CONTROL_WEIGHT} control instructions are charged
+ * as a single vanilla command. Running out of either budget stops the whole execution context, just like vanilla.
+ */
+public class ExecBudget {
+    /**
+     * Implemented on {@link ExecutionContext} by mixin.
+     */
+    public interface Holder {
+        ExecBudget monumenta$getBudget();
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger("FunctionExecutor");
+
+    private int controlQuota = ExecConfig.CONTROL_LIMIT;
+    private int sinceLastCharge = 0;
+    private long controlExecuted = 0;
+
+    public static ExecBudget of(ExecutionContext<?> context) {
+        return ((Holder) context).monumenta$getBudget();
+    }
+
+    /**
+     * Charges a single control instruction.
+     *
+     * @param context The execution context this budget belongs to.
+     * @return Whether the instruction may run.
+     */
+    public boolean chargeControl(ExecutionContext<?> context) {
+        if (controlQuota <= 0) {
+            if (controlQuota == 0) {
+                LOGGER.info("Control flow execution stopped due to limit (executed {} control instructions)",
+                    controlExecuted);
+                ExecStats.controlLimitHits++;
+                // only report once
+                controlQuota = -1;
+            }
+
+            // stop everything, like vanilla does when the command limit is reached
+            context.commandQuota = 0;
+            return false;
+        }
+
+        controlQuota--;
+        controlExecuted++;
+
+        if (ExecConfig.CONTROL_WEIGHT > 0 && ++sinceLastCharge == ExecConfig.CONTROL_WEIGHT) {
+            sinceLastCharge = 0;
+            context.incrementCost();
+        }
+
+        return true;
+    }
+
+    public long controlExecuted() {
+        return controlExecuted;
+    }
+
+    /**
+     * Folds the counters of a finished execution context into {@link ExecStats}.
+     */
+    public void record(ExecutionContext<?> context) {
+        final var commands = context.commandLimit - Math.max(context.commandQuota, 0);
+
+        ExecStats.contexts++;
+        ExecStats.commandsCharged += commands;
+        ExecStats.controlExecuted += controlExecuted;
+
+        if (context.commandQuota <= 0 && controlQuota >= 0) {
+            ExecStats.commandLimitHits++;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.floweytf.mcfext.execution;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Locale;
+
+/**
+ * Server-wide execution settings. These are read from system properties (i.e. {@code -Dmcfext.engine=vm}) once, on
+ * startup.
+ */
+public final class ExecConfig {
+    public enum Engine {
+        /**
+         * Queue every plain command through the {@code ExecutionContext}, see {@link FuncExecTask}.
+         */
+        TASK,
+        /**
+         * Run plain commands directly from the interpreter loop, see {@link FuncExecVM}.
+         */
+        VM
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger("FunctionExecutor");
+
+    public static final Engine ENGINE = readEnum("mcfext.engine", Engine.TASK);
+
+    /**
+     * The maximum number of control instructions a single execution context may run, see {@link ExecBudget}.
+     */
+    public static final int CONTROL_LIMIT = Math.max(readInt("mcfext.control.limit", 1 << 20), 1);
+
+    /**
+     * If positive, every {@code CONTROL_WEIGHT} control instructions are also charged as one vanilla command.
+     */
+    public static final int CONTROL_WEIGHT = readInt("mcfext.control.weight", 0);
+
+    /**
+     * Instructions time-sliced functions may run per tick, in total, see {@link FuncExecScheduler}.
+     */
+    public static final int SLICE_INSTRUCTIONS = Math.max(readInt("mcfext.slice.instructions", 1 << 16), 1);
+
+    /**
+     * Wall clock time (in microseconds) time-sliced functions may run for per tick, in total.
+     */
+    public static final int SLICE_BUDGET_MICROS = Math.max(readInt("mcfext.slice.budget_us", 10000), 0);
+
+    /**
+     * The maximum number of time-sliced functions parked at once. Parking any more aborts the function instead.
+     */
+    public static final int PARK_LIMIT = Math.max(readInt("mcfext.slice.park_limit", 1024), 0);
+
+    /**
+     * The maximum number of functions suspended by {@code sleep}/{@code yield} at once. Suspending any more aborts the
+     * function instead.
+     */
+    public static final int SUSPEND_LIMIT = Math.max(readInt("mcfext.suspend.limit", 1024), 0);
+
+    /**
+     * The maximum total number of sources retained on the stacks of suspended functions (see
+     * {@link #RETAINED_SOURCES_LIMIT}). Suspending a function that would exceed it aborts the function instead.
+     */
+    public static final int SUSPEND_SOURCES_LIMIT = Math.max(readInt("mcfext.suspend.sources_limit", 1 << 20), 0);
+
+    /**
+     * The maximum number of entries on the stack of a single function invocation, see {@link FuncExecStack}.
+     */
+    public static final int STACK_DEPTH_LIMIT = Math.max(readInt("mcfext.stack.depth_limit", 1 << 16), 8);
+
+    /**
+     * The maximum total size of the source lists held on the stack of a single function invocation (by {@code run} and
+     * {@code loop}).
+     */
+    public static final int RETAINED_SOURCES_LIMIT = Math.max(readInt("mcfext.stack.sources_limit", 1 << 20), 1);
+
+    /**
+     * Whether {@code run}/{@code loop} headers are lowered to a {@link SourcePipeline} when possible, rather than being
+     * matched through brigadier at runtime.
+     */
+    public static final boolean LOWER_HEADERS = readBoolean("mcfext.cfv1.lower_headers", true);
+
+    /**
+     * Whether functions are optimized between code generation and lowering, see
+     * {@link com.floweytf.mcfext.codegen.CfgPasses}.
+     */
+    public static final boolean OPTIMIZE_CFG = readBoolean("mcfext.codegen.optimize", true);
+
+    /**
+     * Whether static {@code function} calls are resolved once on reload, see
+     * {@link com.floweytf.mcfext.codegen.CallLinker}.
+     */
+    public static final boolean LINK_CALLS = readBoolean("mcfext.link_calls", true);
+
+    /**
+     * Whether lowered headers cache selector results within a tick, see {@link SelectorCache}.
+     */
+    public static final boolean SELECTOR_CACHE = readBoolean("mcfext.selector_cache", false);
+
+    /**
+     * Whether lowered headers look up {@code @e[tag=...]} selectors through the {@link TagIndex}. Off by default, since
+     * the order of the results differs from vanilla's.
+     */
+    public static final boolean TAG_INDEX = readBoolean("mcfext.tag_index", false);
+
+    /**
+     * Whether every {@link TagIndex} lookup is checked against vanilla's result. This is slow, and only meant for
+     * testing.
+     */
+    public static final boolean TAG_INDEX_VERIFY = readBoolean("mcfext.tag_index.verify", false);
+
+    /**
+     * Whether lowered headers look up distance and volume bounded selectors with a {@link SpatialQuery}. Off by default
+     * until its results have been verified against vanilla's, see {@link #SPATIAL_VERIFY}.
+     */
+    public static final boolean SPATIAL_QUERY = readBoolean("mcfext.spatial_query", false);
+
+    /**
+     * Whether every {@link SpatialQuery} is checked against vanilla's result. This is slow, and only meant for testing.
+     */
+    public static final boolean SPATIAL_VERIFY = readBoolean("mcfext.spatial_query.verify", false);
+
+    /**
+     * The maximum number of predicate results kept by {@link PredicateMemo}.
+     */
+    public static final int PREDICATE_MEMO_SIZE = Math.max(readInt("mcfext.predicate_memo.size", 4096), 1);
+
+    /**
+     * The number of engine invocations after which a function is compiled by the {@link TieredCompiler}. Zero or
+     * negative values disable compilation, which is the default until it has been measured against the interpreter.
+     */
+    public static final int TIER2_THRESHOLD = readInt("mcfext.tier2.threshold", 0);
+
+    /**
+     * The maximum size of functions (in commands) and subroutines (in AST nodes) inlined at every call site, see
+     * {@link com.floweytf.mcfext.codegen.FunctionInliner}. Zero disables it.
+     */
+    public static final int INLINE_MAX_SIZE = Math.max(readInt("mcfext.inline.max_size", 8), 0);
+
+    /**
+     * The maximum size of functions and subroutines inlined at their only call site. Zero disables it.
+     */
+    public static final int INLINE_SINGLE_USE_MAX_SIZE = Math.max(readInt("mcfext.inline.single_use_max_size", 64), 0);
+
+    private ExecConfig() {
+    }
+
+    private static int readInt(String key, int defaultValue) {
+        final var value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Bad integer '{}' for {}, defaulting to {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static boolean readBoolean(String key, boolean defaultValue) {
+        final var value = System.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static <E extends Enum<E>> E readEnum(String key, E defaultValue) {
+        final var value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unknown value '{}' for {}, defaulting to {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+}
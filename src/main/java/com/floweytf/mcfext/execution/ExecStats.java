@@ -0,0 +1,222 @@
+package com.floweytf.mcfext.execution;
+
+/**
+ * Server-wide execution counters, reported by {@code /mcfext stats}. Only accessed from the server thread.
+ */
+public final class ExecStats {
+    /**
+     * Number of finished execution contexts.
+     */
+    public static long contexts;
+    /**
+     * Vanilla command budget ({@code maxCommandChainLength}) consumed.
+     */
+    public static long commandsCharged;
+    /**
+     * Control instructions executed, charged to the control budget.
+     */
+    public static long controlExecuted;
+    /**
+     * Execution contexts stopped by the vanilla command limit.
+     */
+    public static long commandLimitHits;
+    /**
+     * Execution contexts stopped by the control instruction limit.
+     */
+    public static long controlLimitHits;
+    /**
+     * Function calls without control flow, run through vanilla's {@code ContinuationTask}.
+     */
+    public static long plainCalls;
+    /**
+     * Function calls run through the configured engine ({@code FuncExecTask} or {@code FuncExecVM}).
+     */
+    public static long engineCalls;
+    /**
+     * Times a time-sliced function was parked for running out of its tick budget.
+     */
+    public static long slicesParked;
+    /**
+     * Times a parked function was resumed.
+     */
+    public static long sliceResumes;
+    /**
+     * Total wall clock time parked functions waited before being resumed.
+     */
+    public static long sliceWaitNanos;
+    /**
+     * Longest wall clock time a parked function waited before being resumed.
+     */
+    public static long sliceWaitMaxNanos;
+    /**
+     * Functions currently parked. This is a gauge, and is not cleared by {@link #reset()}.
+     */
+    public static long parkedTasks;
+    /**
+     * Functions aborted because too many functions were already parked.
+     */
+    public static long parkRejected;
+    /**
+     * Times a function was suspended by {@code sleep}/{@code yield}.
+     */
+    public static long suspends;
+    /**
+     * Functions aborted because too many functions (or sources) were already suspended.
+     */
+    public static long suspendRejected;
+    /**
+     * Suspended or parked functions aborted because the entity they ran as was removed before they resumed.
+     */
+    public static long removedSourceAborts;
+    /**
+     * Suspended or parked functions aborted by a reload.
+     */
+    public static long reloadAborts;
+    /**
+     * Functions currently suspended. This is a gauge, and is not cleared by {@link #reset()}.
+     */
+    public static long suspendedTasks;
+    /**
+     * Functions aborted for exceeding a stack quota.
+     */
+    public static long quotaAborts;
+    /**
+     * Function stacks that came within a quarter of a stack quota.
+     */
+    public static long quotaNearLimit;
+    /**
+     * Control instructions run as part of a fused instruction, each saving a dispatch.
+     */
+    public static long fusedDispatches;
+    /**
+     * Selector lookups of lowered headers answered by the {@link SelectorCache}.
+     */
+    public static long selectorCacheHits;
+    /**
+     * Cacheable selector lookups of lowered headers that had to scan the world.
+     */
+    public static long selectorCacheMisses;
+    /**
+     * Predicate conditions answered by the {@link PredicateMemo}.
+     */
+    public static long predicateMemoHits;
+    /**
+     * Memoized predicate conditions that had to be evaluated.
+     */
+    public static long predicateMemoMisses;
+    /**
+     * Predicate results evicted from the {@link PredicateMemo} to stay within its size limit.
+     */
+    public static long predicateMemoEvictions;
+    /**
+     * Selector lookups of lowered headers answered by the {@link TagIndex}.
+     */
+    public static long tagIndexLookups;
+    /**
+     * Entities tested by selectors answered by the {@link TagIndex}.
+     */
+    public static long tagIndexCandidates;
+    /**
+     * Tag index lookups whose result differed from vanilla's, when verifying them.
+     */
+    public static long tagIndexMismatches;
+    /**
+     * Selector lookups of lowered headers answered by a {@link SpatialQuery}.
+     */
+    public static long spatialQueries;
+    /**
+     * Spatial queries whose result differed from vanilla's, when verifying them.
+     */
+    public static long spatialMismatches;
+    /**
+     * Functions compiled by the {@link TieredCompiler}.
+     */
+    public static long tier2Compiles;
+    /**
+     * Functions that failed to compile, and stayed interpreted.
+     */
+    public static long tier2Failures;
+    /**
+     * Compiled functions that threw, and went back to being interpreted.
+     */
+    public static long tier2Deopts;
+
+    private ExecStats() {
+    }
+
+    public static void reset() {
+        contexts = 0;
+        commandsCharged = 0;
+        controlExecuted = 0;
+        commandLimitHits = 0;
+        controlLimitHits = 0;
+        plainCalls = 0;
+        engineCalls = 0;
+        slicesParked = 0;
+        sliceResumes = 0;
+        sliceWaitNanos = 0;
+        sliceWaitMaxNanos = 0;
+        suspends = 0;
+        suspendRejected = 0;
+        removedSourceAborts = 0;
+        reloadAborts = 0;
+        parkRejected = 0;
+        quotaAborts = 0;
+        quotaNearLimit = 0;
+        fusedDispatches = 0;
+        selectorCacheHits = 0;
+        selectorCacheMisses = 0;
+        predicateMemoHits = 0;
+        predicateMemoMisses = 0;
+        predicateMemoEvictions = 0;
+        tagIndexLookups = 0;
+        tagIndexCandidates = 0;
+        tagIndexMismatches = 0;
+        spatialQueries = 0;
+        spatialMismatches = 0;
+        tier2Compiles = 0;
+        tier2Failures = 0;
+        tier2Deopts = 0;
+    }
+
+    public static String dump() {
+        return String.format(
+            "contexts: %d\n" +
+                "function calls: %d plain, %d engine\n" +
+                "time slicing: %d parked now, %d parks, %d resumes, wait %.2fms avg / %.2fms max, " +
+                "%d rejected (limit %d)\n" +
+                "suspension: %d suspended now, %d suspends, %d rejected (limit %d, sources %d)\n" +
+                "aborted on resume: %d removed entities, %d reloads\n" +
+                "stack quotas: %d aborts, %d near limit (depth %d, sources %d)\n" +
+                "command budget: %d used, %d limit hits\n" +
+                "control budget: %d used, %d limit hits (limit %d, weight %d)\n" +
+                "fusion: %d dispatches saved\n" +
+                "selector cache: %d hits, %d misses (%s)\n" +
+                "predicate memo: %d hits, %d misses, %d evictions (%.1f%% hit rate, size %d)\n" +
+                "tag index: %d lookups, %d candidates tested, %d mismatches (%s%s)\n" +
+                "spatial queries: %d queries, %d mismatches (%s%s)\n" +
+                "tier 2: %d compiled, %d failed, %d deoptimized (threshold %d)",
+            contexts,
+            plainCalls, engineCalls,
+            parkedTasks, slicesParked, sliceResumes,
+            sliceResumes == 0 ? 0.0 : sliceWaitNanos / 1e6 / sliceResumes, sliceWaitMaxNanos / 1e6,
+            parkRejected, ExecConfig.PARK_LIMIT,
+            suspendedTasks, suspends, suspendRejected, ExecConfig.SUSPEND_LIMIT, ExecConfig.SUSPEND_SOURCES_LIMIT,
+            removedSourceAborts, reloadAborts,
+            quotaAborts, quotaNearLimit, ExecConfig.STACK_DEPTH_LIMIT, ExecConfig.RETAINED_SOURCES_LIMIT,
+            commandsCharged, commandLimitHits,
+            controlExecuted, controlLimitHits, ExecConfig.CONTROL_LIMIT, ExecConfig.CONTROL_WEIGHT,
+            fusedDispatches,
+            selectorCacheHits, selectorCacheMisses, ExecConfig.SELECTOR_CACHE ? "enabled" : "disabled",
+            predicateMemoHits, predicateMemoMisses, predicateMemoEvictions,
+            predicateMemoHits + predicateMemoMisses == 0 ? 0.0 :
+                100.0 * predicateMemoHits / (predicateMemoHits + predicateMemoMisses),
+            ExecConfig.PREDICATE_MEMO_SIZE,
+            tagIndexLookups, tagIndexCandidates, tagIndexMismatches, ExecConfig.TAG_INDEX ? "enabled" : "disabled",
+            ExecConfig.TAG_INDEX_VERIFY ? ", verifying" : "",
+            spatialQueries, spatialMismatches, ExecConfig.SPATIAL_QUERY ? "enabled" : "disabled",
+            ExecConfig.SPATIAL_VERIFY ? ", verifying" : "",
+            tier2Compiles, tier2Failures, tier2Deopts, ExecConfig.TIER2_THRESHOLD
+        );
+    }
+}
@@ -0,0 +1,277 @@
+package com.floweytf.mcfext.execution;
+
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Per-server scheduler for function executions that are spread over several ticks.
+ * <p>
+ * Functions compiled with {@code pragma enable time_slice} share a per-tick budget (see
+ * {@link ExecConfig#SLICE_INSTRUCTIONS} and {@link ExecConfig#SLICE_BUDGET_MICROS}). Once it runs out, a task parks
+ * its {@link FuncExecState} here, and is resumed from the same instruction at the start of the next tick, in a fresh
+ * execution context. At most {@link ExecConfig#PARK_LIMIT} tasks may be parked at once.
+ * <p>
+ * Functions may also suspend themselves explicitly with {@code sleep <ticks>} or {@code yield}. Those are kept in a
+ * min-heap keyed by the tick they should wake up on, and are capped at {@link ExecConfig#SUSPEND_LIMIT} entries, and
+ * at {@link ExecConfig#SUSPEND_SOURCES_LIMIT} sources retained on their stacks in total.
+ * <p>
+ * Suspended and parked tasks are aborted rather than resumed if the entity they run as was removed in the meantime,
+ * and are all aborted on reload, since they would otherwise keep running the functions from before the reload.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public class FuncExecScheduler {
+    public interface Holder {
+        FuncExecScheduler monumenta$getScheduler();
+    }
+
+    /**
+     * How often (in instructions) the wall clock is checked against the budget.
+     */
+    private static final int CLOCK_INTERVAL = 64;
+
+    private static final Logger LOGGER = LogManager.getLogger("FunctionExecutor");
+
+    private record Parked(FuncExecTask<?> task, CommandSourceStack source, long parkedAt) {
+    }
+
+    private record Suspended(
+        FuncExecTask<?> task, CommandSourceStack source, long wakeTick, long order, long retainedSources
+    ) {
+    }
+
+    // Tasks that made no progress the last time they ran go first, so a single task can't starve the others
+    private ArrayDeque<Parked> starved = new ArrayDeque<>();
+    private ArrayDeque<Parked> parked = new ArrayDeque<>();
+
+    // Ties are broken by suspension order, so functions sleeping for the same tick wake up in FIFO order
+    private final PriorityQueue<Suspended> suspended = new PriorityQueue<>(
+        Comparator.comparingLong(Suspended::wakeTick).thenComparingLong(Suspended::order)
+    );
+    private long currentTick = 0;
+    private long suspendOrder = 0;
+    private long suspendedSources = 0;
+    private boolean warnedSuspendLimit = false;
+    private boolean warnedParkLimit = false;
+
+    private long sliceStart = -1;
+    private int sliceExecuted = 0;
+    private boolean sliceExhausted = false;
+
+    /**
+     * @return The scheduler of the server {@code source} belongs to, or null if there is none.
+     */
+    @Nullable
+    public static FuncExecScheduler of(Object source) {
+        if (source instanceof CommandSourceStack stack && stack.getServer() != null) {
+            return ((Holder) stack.getServer().getFunctions()).monumenta$getScheduler();
+        }
+
+        return null;
+    }
+
+    private static boolean isSourceRemoved(CommandSourceStack source) {
+        final var entity = source.getEntity();
+        return entity != null && entity.isRemoved();
+    }
+
+    /**
+     * Charges one instruction to this tick's time slice.
+     *
+     * @return Whether the instruction may run. If false, the caller should park.
+     */
+    public boolean chargeSlice() {
+        if (sliceExhausted) {
+            return false;
+        }
+
+        // The wall clock budget starts ticking at the first sliced instruction of the tick
+        if (sliceStart < 0) {
+            sliceStart = System.nanoTime();
+        }
+
+        sliceExecuted++;
+
+        if (sliceExecuted > ExecConfig.SLICE_INSTRUCTIONS || (sliceExecuted % CLOCK_INTERVAL == 0 &&
+            System.nanoTime() - sliceStart > ExecConfig.SLICE_BUDGET_MICROS * 1000L)) {
+            sliceExhausted = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parks a task until the next tick. If too many tasks are parked already, the task is dropped, which aborts the
+     * function.
+     *
+     * @param madeProgress Whether the task executed anything before running out of budget.
+     */
+    public void park(FuncExecTask<?> task, CommandSourceStack source, boolean madeProgress) {
+        if (starved.size() + parked.size() >= ExecConfig.PARK_LIMIT) {
+            ExecStats.parkRejected++;
+
+            if (!warnedParkLimit) {
+                warnedParkLimit = true;
+                LOGGER.warn(
+                    "Too many parked functions (limit {}), aborting {}. Further aborts will not be logged until " +
+                        "the limit is no longer reached.", ExecConfig.PARK_LIMIT, task.id()
+                );
+            }
+
+            return;
+        }
+
+        (madeProgress ? parked : starved).add(new Parked(task, source, System.nanoTime()));
+        ExecStats.slicesParked++;
+        ExecStats.parkedTasks++;
+    }
+
+    /**
+     * Suspends a task for {@code ticks} ticks. If too many tasks (or sources) are suspended already, the task is
+     * dropped, which aborts the function.
+     */
+    public void suspend(FuncExecTask<?> task, CommandSourceStack source, int ticks) {
+        final var sources = task.state.retainedSources();
+
+        if (suspended.size() >= ExecConfig.SUSPEND_LIMIT ||
+            suspendedSources + sources > ExecConfig.SUSPEND_SOURCES_LIMIT) {
+            ExecStats.suspendRejected++;
+
+            if (!warnedSuspendLimit) {
+                warnedSuspendLimit = true;
+                LOGGER.warn(
+                    "Too many suspended functions (limit {}, {} sources), aborting {}. Further aborts will not be " +
+                        "logged until the limits are no longer reached.", ExecConfig.SUSPEND_LIMIT,
+                    ExecConfig.SUSPEND_SOURCES_LIMIT, task.id()
+                );
+            }
+
+            return;
+        }
+
+        suspended.add(new Suspended(task, source, currentTick + ticks, suspendOrder++, sources));
+        suspendedSources += sources;
+        ExecStats.suspends++;
+        ExecStats.suspendedTasks++;
+    }
+
+    /**
+     * @return A human-readable description of every suspended and parked task, in wake-up order.
+     */
+    public List<String> describe() {
+        final var res = new ArrayList<String>();
+        final var sorted = new ArrayList<>(suspended);
+        sorted.sort(suspended.comparator());
+
+        for (final var entry : sorted) {
+            res.add(String.format(
+                "%s: suspended, wakes in %d ticks, as %s, %s",
+                entry.task().id(), entry.wakeTick() - currentTick, entry.source().getTextName(), entry.task().state
+            ));
+        }
+
+        for (final var queue : List.of(starved, parked)) {
+            for (final var entry : queue) {
+                res.add(String.format(
+                    "%s: parked, as %s, %s",
+                    entry.task().id(), entry.source().getTextName(), entry.task().state
+                ));
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Aborts every suspended and parked task, after the functions they were running were reloaded.
+     */
+    public void abortAll() {
+        final var count = suspended.size() + starved.size() + parked.size();
+        if (count == 0) {
+            return;
+        }
+
+        ExecStats.suspendedTasks -= suspended.size();
+        ExecStats.parkedTasks -= starved.size() + parked.size();
+        ExecStats.reloadAborts += count;
+
+        suspended.clear();
+        starved.clear();
+        parked.clear();
+        suspendedSources = 0;
+
+        LOGGER.info("Aborted {} suspended or parked functions, since their functions were reloaded", count);
+    }
+
+    /**
+     * Starts a new time slice, and resumes suspended tasks that are due, as well as everything parked during the
+     * previous tick.
+     */
+    @SuppressWarnings("unchecked")
+    public void tick() {
+        currentTick++;
+        sliceStart = -1;
+        sliceExecuted = 0;
+        sliceExhausted = false;
+
+        while (!suspended.isEmpty() && suspended.peek().wakeTick() <= currentTick) {
+            final var entry = suspended.poll();
+            ExecStats.suspendedTasks--;
+            suspendedSources -= entry.retainedSources();
+
+            if (isSourceRemoved(entry.source())) {
+                ExecStats.removedSourceAborts++;
+                continue;
+            }
+
+            final var task = (FuncExecTask<CommandSourceStack>) entry.task();
+            Commands.executeCommandInContext(entry.source(), task::resume);
+        }
+
+        if (suspended.size() < ExecConfig.SUSPEND_LIMIT && suspendedSources < ExecConfig.SUSPEND_SOURCES_LIMIT) {
+            warnedSuspendLimit = false;
+        }
+
+        if (starved.size() + parked.size() < ExecConfig.PARK_LIMIT) {
+            warnedParkLimit = false;
+        }
+
+        if (starved.isEmpty() && parked.isEmpty()) {
+            return;
+        }
+
+        final var ready = starved;
+        ready.addAll(parked);
+        starved = new ArrayDeque<>();
+        parked = new ArrayDeque<>();
+
+        final var now = System.nanoTime();
+
+        for (final var entry : ready) {
+            final var waited = now - entry.parkedAt();
+            ExecStats.parkedTasks--;
+
+            if (isSourceRemoved(entry.source())) {
+                ExecStats.removedSourceAborts++;
+                continue;
+            }
+
+            ExecStats.sliceResumes++;
+            ExecStats.sliceWaitNanos += waited;
+            ExecStats.sliceWaitMaxNanos = Math.max(ExecStats.sliceWaitMaxNanos, waited);
+
+            final var task = (FuncExecTask<CommandSourceStack>) entry.task();
+            Commands.executeCommandInContext(entry.source(), task::resume);
+        }
+    }
+}
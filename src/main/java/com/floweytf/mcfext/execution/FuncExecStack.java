@@ -1,17 +1,28 @@
 package com.floweytf.mcfext.execution;
 
-import it.unimi.dsi.fastutil.Pair;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
 
 /**
  * The local state stack for function execution.
  * <p>
  * MCFunction uses a stack machine execution model for implementing control flow.
  * See <a href="https://en.wikipedia.org/wiki/Stack_machine">wikipedia</a>.
+ * <p>
+ * Entries are stored in three parallel arrays (type tag, reference slot and address slot), so pushing and popping
+ * never allocates, except for the occasional growth of the backing arrays.
+ * <p>
+ * Stacks of functions that passed the {@link StackVerifier} are unchecked: they skip the underflow and type checks on
+ * every access, since verified code can never fail them.
+ * <p>
+ * Every stack is subject to the per-invocation quotas in {@link ExecConfig}: the number of entries
+ * ({@link ExecConfig#STACK_DEPTH_LIMIT}) and the total size of the source lists held by entries
+ * ({@link ExecConfig#RETAINED_SOURCES_LIMIT}). Exceeding either throws a {@link QuotaExceededException}, which aborts
+ * the function. The depth limit itself is only checked when the backing arrays grow, so most pushes only compare the
+ * depth against the threshold {@link ExecStats#quotaNearLimit} reports at.
  *
  * @see FuncExecState
  */
@@ -19,90 +30,287 @@ public class FuncExecStack<T> {
     public enum Type {
         CONTEXT_LIST,
         CONTEXT,
-        INSTR_ADDRESS
+        INSTR_ADDRESS,
+        CONTEXT_CURSOR;
+
+        private static final Type[] VALUES = values();
+    }
+
+    /**
+     * Thrown when a push would exceed one of the stack quotas.
+     */
+    public static class QuotaExceededException extends RuntimeException {
+        public QuotaExceededException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int NEAR_DEPTH_LIMIT = ExecConfig.STACK_DEPTH_LIMIT - (ExecConfig.STACK_DEPTH_LIMIT >> 2);
+
+    private byte[] tags = new byte[INITIAL_CAPACITY];
+    private Object[] refs = new Object[INITIAL_CAPACITY];
+    private int[] addrs = new int[INITIAL_CAPACITY];
+    // The number of sources each entry was accounted for when pushed, since lists may change while on the stack
+    private int[] retained = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private long retainedSources = 0;
+    private boolean nearLimit = false;
+    private final boolean checked;
+
+    public FuncExecStack(boolean checked) {
+        this.checked = checked;
+    }
+
+    public FuncExecStack() {
+        this(true);
+    }
+
+    private void reportNearLimit(long value, long limit) {
+        // Counted once per stack, when it first passes three quarters of a quota
+        if (!nearLimit && value > limit - (limit >> 2)) {
+            nearLimit = true;
+            ExecStats.quotaNearLimit++;
+        }
+    }
+
+    private void grow() {
+        final var limit = ExecConfig.STACK_DEPTH_LIMIT;
+
+        if (size >= limit) {
+            throw new QuotaExceededException("stack depth exceeded the limit of " + limit);
+        }
+
+        // The capacity never exceeds the limit, so reaching it is only ever checked here
+        final var newCapacity = (int) Math.min((long) size * 2, limit);
+
+        tags = Arrays.copyOf(tags, newCapacity);
+        refs = Arrays.copyOf(refs, newCapacity);
+        addrs = Arrays.copyOf(addrs, newCapacity);
+        retained = Arrays.copyOf(retained, newCapacity);
+    }
+
+    private int pushSlot(Type type) {
+        if (size == tags.length) {
+            grow();
+        }
+
+        if (size >= NEAR_DEPTH_LIMIT) {
+            reportNearLimit(size + 1, ExecConfig.STACK_DEPTH_LIMIT);
+        }
+
+        tags[size] = (byte) type.ordinal();
+        return size++;
+    }
+
+    /**
+     * Accounts for the sources of the entry at {@code index}. Lists must be filled before they are pushed.
+     */
+    private void retain(int index, List<?> sources) {
+        final var limit = ExecConfig.RETAINED_SOURCES_LIMIT;
+        final var total = retainedSources + sources.size();
+
+        if (total > limit) {
+            // The entry is pushed already, but the stack is dropped along with the aborted function
+            throw new QuotaExceededException(
+                "retained sources exceeded the limit of " + limit + " (" + total + " sources)"
+            );
+        }
+
+        reportNearLimit(total, limit);
+        retainedSources = total;
+        retained[index] = sources.size();
+    }
+
+    private void release(int index) {
+        // streams aren't accounted for, since they don't hold their sources
+        retainedSources -= retained[index];
+        retained[index] = 0;
+    }
+
+    private int topSlot(Type type) {
+        final var index = size - 1;
+
+        if (checked) {
+            if (size == 0) {
+                throw new IllegalStateException("Stack underflow");
+            }
+
+            if (tags[index] != type.ordinal()) {
+                throw new IllegalStateException("Stack type mismatch");
+            }
+        }
+
+        return index;
     }
 
-    private final ArrayDeque<Pair<Type, Object>> stack = new ArrayDeque<>();
+    private Object popRef(Type type) {
+        final var index = topSlot(type);
+        release(index);
+        final var value = refs[index];
+        refs[index] = null;
+        size = index;
+        return value;
+    }
 
     public void pushSourceList(List<T> entry) {
-        stack.push(Pair.of(Type.CONTEXT_LIST, entry));
+        final var index = pushSlot(Type.CONTEXT_LIST);
+        refs[index] = entry;
+        retain(index, entry);
     }
 
     public void pushSource(T entry) {
-        stack.push(Pair.of(Type.CONTEXT, entry));
+        refs[pushSlot(Type.CONTEXT)] = entry;
     }
 
     public void pushInstrAddress(int entry) {
-        stack.push(Pair.of(Type.INSTR_ADDRESS, entry));
+        addrs[pushSlot(Type.INSTR_ADDRESS)] = entry;
+    }
+
+    /**
+     * Pushes a cursor over a list of sources, positioned at the first source. The list must not grow afterward.
+     */
+    public void pushSourceCursor(List<T> entry) {
+        final var index = pushSlot(Type.CONTEXT_CURSOR);
+        refs[index] = entry;
+        addrs[index] = 0;
+        retain(index, entry);
+    }
+
+    /**
+     * Pushes a cursor over a lazily evaluated sequence of sources. Sources are only produced as the cursor advances.
+     */
+    public void pushSourceStream(Iterator<T> entry) {
+        refs[pushSlot(Type.CONTEXT_CURSOR)] = entry;
     }
 
     @SuppressWarnings("unchecked")
     public List<T> popSourceList() {
-        final var ent = stack.pop();
-        if (ent.first() != Type.CONTEXT_LIST) {
-            throw new IllegalStateException("Stack type mismatch");
-        }
-        return (List<T>) ent.second();
+        return (List<T>) popRef(Type.CONTEXT_LIST);
     }
 
     @SuppressWarnings("unchecked")
     public T popSource() {
-        final var ent = stack.pop();
-        if (ent.first() != Type.CONTEXT) {
-            throw new IllegalStateException("Stack type mismatch");
-        }
-        return (T) ent.second();
+        return (T) popRef(Type.CONTEXT);
     }
 
     public int popInstrAddress() {
-        final var ent = stack.pop();
-        if (ent.first() != Type.INSTR_ADDRESS) {
-            throw new IllegalStateException("Stack type mismatch");
-        }
-        return (Integer) ent.second();
+        final var index = topSlot(Type.INSTR_ADDRESS);
+        size = index;
+        return addrs[index];
+    }
+
+    /**
+     * @return The list the cursor was over, or {@code null} if the cursor was over a stream.
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public List<T> popSourceCursor() {
+        return popRef(Type.CONTEXT_CURSOR) instanceof List<?> list ? (List<T>) list : null;
     }
 
     @SuppressWarnings("unchecked")
     public List<T> peekSourceList() {
-        final var ent = Objects.requireNonNull(stack.peek());
-        if (ent.first() != Type.CONTEXT_LIST) {
-            throw new IllegalStateException("Stack type mismatch");
-        }
-        return (List<T>) ent.second();
+        return (List<T>) refs[topSlot(Type.CONTEXT_LIST)];
     }
 
     @SuppressWarnings("unchecked")
     public T peekSource() {
-        final var ent = Objects.requireNonNull(stack.peek());
-        if (ent.first() != Type.CONTEXT) {
-            throw new IllegalStateException("Stack type mismatch");
-        }
-        return (T) ent.second();
+        return (T) refs[topSlot(Type.CONTEXT)];
     }
 
     public int peekInstrAddress() {
-        final var ent = Objects.requireNonNull(stack.peek());
-        if (ent.first() != Type.INSTR_ADDRESS) {
-            throw new IllegalStateException("Stack type mismatch");
+        return addrs[topSlot(Type.INSTR_ADDRESS)];
+    }
+
+    /**
+     * @return Whether the cursor on top of the stack has sources left.
+     */
+    public boolean sourceCursorHasNext() {
+        final var index = topSlot(Type.CONTEXT_CURSOR);
+
+        if (refs[index] instanceof Iterator<?> stream) {
+            return stream.hasNext();
         }
-        return (Integer) ent.second();
+
+        return addrs[index] < ((List<?>) refs[index]).size();
+    }
+
+    /**
+     * Advances the cursor on top of the stack.
+     *
+     * @return The source the cursor was pointing at.
+     */
+    @SuppressWarnings("unchecked")
+    public T sourceCursorNext() {
+        final var index = topSlot(Type.CONTEXT_CURSOR);
+
+        if (refs[index] instanceof Iterator<?> stream) {
+            return (T) stream.next();
+        }
+
+        return ((List<T>) refs[index]).get(addrs[index]++);
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public String toString() {
-        return "[" + stack.stream().map(x -> switch (x.first()) {
-            case CONTEXT -> "Context";
-            case CONTEXT_LIST -> "ContextList[" + ((List<T>) x.second()).size() + "]";
-            case INSTR_ADDRESS -> "InstrAddress[" + x.second() + "]";
-        }).collect(Collectors.joining(", ")) + "]";
+        final var builder = new StringBuilder("[");
+
+        // top of the stack first
+        for (int i = size - 1; i >= 0; i--) {
+            builder.append(switch (Type.VALUES[tags[i]]) {
+                case CONTEXT -> "Context";
+                case CONTEXT_LIST -> "ContextList[" + ((List<T>) refs[i]).size() + "]";
+                case INSTR_ADDRESS -> "InstrAddress[" + addrs[i] + "]";
+                case CONTEXT_CURSOR -> refs[i] instanceof List<?> list ?
+                    "ContextCursor[" + addrs[i] + "/" + list.size() + "]" : "ContextStream";
+            });
+
+            if (i != 0) {
+                builder.append(", ");
+            }
+        }
+
+        return builder.append("]").toString();
     }
 
     public void discard() {
-        stack.pop();
+        if (size == 0) {
+            throw new IllegalStateException("Stack underflow");
+        }
+
+        release(--size);
+        refs[size] = null;
+    }
+
+    /**
+     * Pops entries until the stack is {@code height} entries tall.
+     *
+     * @param height The new height of the stack, must not be greater than the current height.
+     */
+    public void truncate(int height) {
+        if (checked && (height > size || height < 0)) {
+            throw new IllegalStateException("Stack was popped too much");
+        }
+
+        for (int i = height; i < size; i++) {
+            release(i);
+            refs[i] = null;
+        }
+
+        size = height;
     }
 
     public int size() {
-        return stack.size();
+        return size;
+    }
+
+    /**
+     * @return The total size of the source lists held by entries, as counted against
+     * {@link ExecConfig#RETAINED_SOURCES_LIMIT}.
+     */
+    public long retainedSources() {
+        return retainedSources;
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,12 @@ package com.floweytf.mcfext.execution;
 import com.floweytf.mcfext.execution.instr.ControlInstr;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntStack;
+import net.minecraft.commands.execution.UnboundEntryAction;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Represents the function-local "register" and "stack" state during function execution.
@@ -21,6 +26,8 @@ import org.jetbrains.annotations.NotNull;
  *     <li>{@code Source}:  A command source. Java type: {@code T}</li>
  *     <li>{@code List<Source>}: A command source. Java type: {@code List<T>}</li>
  *     <li>{@code InstrAddress}: A command source. Java type: {@code int}</li>
+ *     <li>{@code SourceCursor}: A list of command sources, with a position in it.
+ *     Java type: {@code (List<T>, int)}</li>
  * </ul>
  *
  * <h3>Registers</h3>
@@ -62,27 +69,125 @@ import org.jetbrains.annotations.NotNull;
  * @param <T> The command source type.
  */
 public class FuncExecState<T> {
-    public final FuncExecStack<T> stack = new FuncExecStack<>();
-    public final IntStack basePointerStack = new IntArrayList();
+    private record FarReturn<T>(List<UnboundEntryAction<T>> code, int depth) {
+    }
+
+    // Allocated on first use, most functions never touch the stack
+    private FuncExecStack<T> stack;
+    private IntArrayList basePointerStack;
+    private ArrayList<FarReturn<T>> farReturns;
 
     @NotNull
     public T source;
+    /**
+     * The instructions being run: the function's own, or those of another function while running a subroutine
+     * imported from it (see {@link #farCall}). {@link #instr} indexes into these.
+     */
+    public List<UnboundEntryAction<T>> code;
     public int instr = 0;
+    /**
+     * Set once the function's frame has been discarded (for instance, by vanilla's {@code return}). Nothing more
+     * should be executed after this.
+     */
+    public boolean discarded = false;
+    /**
+     * Set by instructions to suspend the function for this many ticks, once the current instruction is done.
+     */
+    public int suspendTicks = 0;
+    /**
+     * The number of time-sliced instructions run since the function was started or last resumed by the
+     * {@link FuncExecScheduler}, across every re-entry of its task.
+     */
+    public int sliceProgress = 0;
+    /**
+     * Set by the task before every control instruction: how many more instructions may run inline after it, for
+     * instructions that run several at once (see {@link FuncExecTask#continuesInline}).
+     */
+    public int inlineRemaining = 0;
+    /**
+     * The scheduler charging every instruction while the function runs, if it is time-sliced.
+     */
+    @Nullable
+    public FuncExecScheduler slice = null;
 
-    public FuncExecState(@NotNull T source) {
+    private final boolean verified;
+
+    /**
+     * @param code     The instructions of the function.
+     * @param verified Whether the function passed the {@link StackVerifier}, which allows the stack to be unchecked.
+     */
+    public FuncExecState(@NotNull T source, List<UnboundEntryAction<T>> code, boolean verified) {
         this.source = source;
+        this.code = code;
+        this.verified = verified;
+    }
+
+    public FuncExecState(@NotNull T source, List<UnboundEntryAction<T>> code) {
+        this(source, code, false);
+    }
+
+    public FuncExecStack<T> stack() {
+        if (stack == null) {
+            stack = new FuncExecStack<>(!verified);
+        }
+
+        return stack;
+    }
+
+    /**
+     * @return The number of sources retained by the stack, without allocating it.
+     */
+    public long retainedSources() {
+        return stack == null ? 0 : stack.retainedSources();
+    }
+
+    public IntStack basePointers() {
+        if (basePointerStack == null) {
+            basePointerStack = new IntArrayList();
+        }
+
+        return basePointerStack;
     }
 
     public void pushSource() {
-        stack.pushSource(source);
+        stack().pushSource(source);
     }
 
     public void popSource() {
-        source = stack.popSource();
+        source = stack().popSource();
+    }
+
+    private int depth() {
+        return basePointerStack == null ? 0 : basePointerStack.size();
+    }
+
+    /**
+     * Switches to the instructions of another function, for a subroutine call into it. Must be called right before
+     * pushing the base pointer of the callee's frame: once that frame is popped, {@link #subroutineReturned()} switches
+     * back to the current instructions.
+     */
+    public void farCall(List<UnboundEntryAction<T>> target) {
+        if (farReturns == null) {
+            farReturns = new ArrayList<>();
+        }
+
+        farReturns.add(new FarReturn<>(code, depth()));
+        code = target;
+    }
+
+    /**
+     * Called after a subroutine frame was popped, to switch back to the caller's instructions if the subroutine was
+     * called from another function.
+     */
+    public void subroutineReturned() {
+        if (farReturns != null && !farReturns.isEmpty() &&
+            farReturns.get(farReturns.size() - 1).depth == depth()) {
+            code = farReturns.remove(farReturns.size() - 1).code;
+        }
     }
 
     @Override
     public String toString() {
-        return String.format("[instr = %d, stack = %s]", instr, stack);
+        return String.format("[instr = %d, stack = %s]", instr, stack == null ? "[]" : stack);
     }
 }
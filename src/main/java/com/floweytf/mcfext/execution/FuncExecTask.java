@@ -1,75 +1,280 @@
 package com.floweytf.mcfext.execution;
 
 import com.floweytf.mcfext.execution.instr.ControlInstr;
+import net.minecraft.commands.CommandResultCallback;
+import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.execution.*;
+import net.minecraft.resources.ResourceLocation;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.lang.invoke.WrongMethodTypeException;
 import java.util.List;
 
 /**
  * Rewrite of minecraft's continuation task to support control flow.
+ * <p>
+ * Runs of {@link ControlInstr} are executed inline, directly within this task, rather than being queued as their own
+ * entries. The task only yields back to the {@link ExecutionContext} when it reaches a plain command, when a control
+ * instruction queues work of its own (that work must run before the next instruction), or when {@link #MAX_INLINE}
+ * instructions have been run back-to-back.
+ * <p>
+ * Time-sliced functions additionally charge every instruction to the per-tick budget of the
+ * {@link FuncExecScheduler}, and park themselves there once it runs out. Functions may also suspend themselves
+ * explicitly, see {@link com.floweytf.mcfext.execution.instr.SuspendInstr}.
+ * <p>
+ * Once a function gets hot, control instructions are dispatched through its {@link TieredCompiler.Body} instead. If
+ * the compiled code itself fails (rather than an instruction it runs), the function is deoptimized, and is interpreted
+ * from then on.
  *
  * @see FuncExecState
  */
 public class FuncExecTask<T> implements EntryAction<T> {
+    /**
+     * The maximum number of instructions run inline before the task re-queues itself. This keeps a single queue entry
+     * from spinning forever on a pure control flow loop.
+     */
+    private static final int MAX_INLINE = 256;
+
     private static final Logger LOGGER = LogManager.getLogger("FunctionExecutor");
+    private final ResourceLocation id;
     private final List<UnboundEntryAction<T>> actions;
-    private final CommandQueueEntry<T> selfEntry;
-    private final FuncExecState<T> state;
+    private final boolean sliced;
+    @Nullable
+    private TieredCompiler.Body<T> tier2;
+    protected CommandQueueEntry<T> selfEntry;
+    protected final FuncExecState<T> state;
 
-    private FuncExecTask(List<UnboundEntryAction<T>> actions, Frame frame,
-                         T initialSource) {
+    protected FuncExecTask(ResourceLocation id, List<UnboundEntryAction<T>> actions, Frame frame,
+                           T initialSource) {
+        this.id = id;
         this.actions = actions;
-        this.selfEntry = new CommandQueueEntry<T>(frame, this);
-        this.state = new FuncExecState<>(initialSource);
+        this.sliced = CompiledActionList.hasFeature(actions, CompiledActionList.TIME_SLICED);
+        this.tier2 = CompiledActionList.tier2Of(id, actions);
+        this.state = new FuncExecState<>(
+            initialSource, actions, CompiledActionList.hasFeature(actions, CompiledActionList.VERIFIED)
+        );
+        this.selfEntry = createEntry(frame);
+    }
+
+    private CommandQueueEntry<T> createEntry(Frame frame) {
+        // Track discards (vanilla's return) of our frame, so instructions that run commands directly know to stop
+        return new CommandQueueEntry<>(
+            new Frame(frame.depth(), frame.returnValueConsumer(), () -> {
+                state.discarded = true;
+                frame.discard();
+            }),
+            this
+        );
     }
 
-    public static <T> void schedule(ExecutionContext<T> c, Frame f,
+    public static <T> void schedule(ExecutionContext<T> c, Frame f, ResourceLocation id,
                                     List<UnboundEntryAction<T>> actions, T source) {
         if (actions.isEmpty())
             return;
 
-        c.queueNext((new FuncExecTask<>(actions, f, source)).selfEntry);
+        c.queueNext((new FuncExecTask<>(id, actions, f, source)).selfEntry);
     }
 
-    @Override
-    public void execute(@NotNull ExecutionContext<T> exec, @NotNull Frame frame) {
-        if (state.instr >= actions.size()) {
-            return;
+    public ResourceLocation id() {
+        return id;
+    }
+
+    /**
+     * Resumes a parked task as the top level frame of a new execution context. The original caller is long gone, so
+     * the return value of the function is discarded.
+     */
+    void resume(ExecutionContext<T> exec) {
+        state.sliceProgress = 0;
+        selfEntry = createEntry(new Frame(0, CommandResultCallback.EMPTY, exec.frameControlForDepth(0)));
+        exec.queueNext(selfEntry);
+    }
+
+    /**
+     * Hands the task over to the scheduler after a suspend instruction. If there is no scheduler to suspend to, the
+     * instruction does nothing.
+     *
+     * @return Whether execution should stop.
+     */
+    private boolean suspend() {
+        final var ticks = state.suspendTicks;
+        state.suspendTicks = 0;
+
+        final var scheduler = FuncExecScheduler.of(state.source);
+        if (scheduler == null) {
+            return false;
         }
 
-        if (state.instr < 0) {
-            LOGGER.warn("state index out of bounds");
-            return;
+        // If the scheduler is full, the function is aborted
+        scheduler.suspend(this, (CommandSourceStack) state.source, ticks);
+        return true;
+    }
+
+    /**
+     * Aborts the function after an instruction exceeded a stack quota. Nothing more of the function is run.
+     */
+    private void abort(int index, FuncExecStack.QuotaExceededException e) {
+        ExecStats.quotaAborts++;
+        state.discarded = true;
+        LOGGER.error(
+            "Aborted function '{}' at instruction {} ({}): {}", id, index, state.code.get(index), e.getMessage()
+        );
+    }
+
+    /**
+     * @return The compiled function, if it is what is currently running (rather than a subroutine imported from
+     * another function).
+     */
+    @Nullable
+    protected TieredCompiler.Body<T> compiled() {
+        return state.code == actions ? tier2 : null;
+    }
+
+    /**
+     * Drops the compiled function after its generated code failed to link or to invoke an instruction, so it is
+     * interpreted from now on. The error is still thrown.
+     */
+    protected void deoptimize(Throwable e) {
+        ExecStats.tier2Deopts++;
+        tier2 = null;
+        ((CompiledActionList<T>) actions).deoptimize();
+        LOGGER.warn("Deoptimized function '{}' after its compiled code threw {}", id, e.toString());
+    }
+
+    /**
+     * Checks whether an instruction running several instructions at once may run another one after the current one,
+     * the same way the task would have kept running inline, and charges it if so: the frame wasn't discarded, nothing
+     * was suspended or queued, and there is room left for it in {@link #MAX_INLINE}, in the control budget and, if the
+     * function is time-sliced, in the time slice.
+     *
+     * @param queued The number of commands queued when the instruction started.
+     */
+    public static boolean continuesInline(FuncExecState<?> state, ExecutionContext<?> context, int queued) {
+        if (state.inlineRemaining <= 0 || state.discarded || state.suspendTicks > 0 ||
+            context.newTopCommands.size() != queued) {
+            return false;
+        }
+
+        if (state.slice != null) {
+            if (!state.slice.chargeSlice()) {
+                return false;
+            }
+
+            state.sliceProgress++;
         }
 
-        final var task = actions.get(state.instr);
+        if (!ExecBudget.of(context).chargeControl(context)) {
+            return false;
+        }
+
+        state.inlineRemaining--;
+        return true;
+    }
+
+    /**
+     * Handles a plain (non-control) instruction.
+     *
+     * @return Whether the task may keep running inline. If false, this method is responsible for re-queueing the
+     * task (if needed).
+     */
+    protected boolean executePlain(UnboundEntryAction<T> task, ExecutionContext<T> exec, Frame frame) {
+        exec.queueNext(new CommandQueueEntry<>(frame, task.bind(state.source)));
+        state.instr++;
+        exec.queueNext(selfEntry);
+        return false;
+    }
+
+    @Override
+    public void execute(@NotNull ExecutionContext<T> exec, @NotNull Frame frame) {
+        final var budget = ExecBudget.of(exec);
+        final var scheduler = sliced ? FuncExecScheduler.of(state.source) : null;
+        state.slice = scheduler;
+
+        for (int inlined = 0; ; inlined++) {
+            final var code = state.code;
+            if (state.instr >= code.size()) {
+                return;
+            }
+
+            if (state.instr < 0) {
+                LOGGER.warn("state index out of bounds");
+                return;
+            }
+
+            if (scheduler != null) {
+                // The task is re-entered after every plain command, so progress is tracked on the state
+                if (!scheduler.chargeSlice()) {
+                    scheduler.park(this, (CommandSourceStack) state.source, state.sliceProgress != 0);
+                    return;
+                }
+
+                state.sliceProgress++;
+            }
+
+            if (inlined == MAX_INLINE) {
+                exec.queueNext(selfEntry);
+                return;
+            }
+
+            final var task = code.get(state.instr);
+
+            if (!(task instanceof ControlInstr<T> control)) {
+                if (executePlain(task, exec, frame)) {
+                    continue;
+                }
+
+                return;
+            }
 
-        if (task instanceof ControlInstr<T> control) {
             // special instructions
-            exec.queueNext(new CommandQueueEntry<>(
-                frame,
-                new EntryAction<>() {
-                    @Override
-                    public void execute(@NotNull ExecutionContext<T> c, @NotNull Frame f) {
-                        control.execute(state.source, c, f);
-                        state.instr++;
-                        control.modifyState(state, c, f);
-                    }
-
-                    @Override
-                    public String toString() {
-                        return control.toString();
-                    }
+            if (!budget.chargeControl(exec)) {
+                return;
+            }
+
+            final var index = state.instr;
+            final var queued = exec.newTopCommands.size();
+            final var remaining = MAX_INLINE - inlined - 1;
+            state.inlineRemaining = remaining;
+            final var compiled = compiled();
+
+            try {
+                if (compiled != null) {
+                    compiled.step(index, state, exec, frame);
+                } else {
+                    control.execute(state.source, exec, frame);
+                    state.instr++;
+                    control.modifyState(state, exec, frame);
                 }
-            ));
-            exec.queueNext(selfEntry);
-        } else {
-            exec.queueNext(new CommandQueueEntry<>(frame, task.bind(state.source)));
-            state.instr++;
-            exec.queueNext(selfEntry);
+            } catch (FuncExecStack.QuotaExceededException e) {
+                abort(index, e);
+                return;
+            } catch (LinkageError | WrongMethodTypeException e) {
+                // Only failures of the generated code; exceptions thrown by instructions propagate as they are
+                if (compiled != null) {
+                    deoptimize(e);
+                }
+
+                throw e;
+            }
+
+            // Fused traces and compiled code may have run more instructions
+            inlined += remaining - state.inlineRemaining;
+
+            if (state.discarded) {
+                return;
+            }
+
+            if (state.suspendTicks > 0 && suspend()) {
+                return;
+            }
+
+            // anything queued by the instruction must run before we continue
+            if (exec.newTopCommands.size() != queued) {
+                exec.queueNext(selfEntry);
+                return;
+            }
         }
     }
 
@@ -77,4 +282,4 @@ public class FuncExecTask<T> implements EntryAction<T> {
     public String toString() {
         return "FuncExecTask" + state.toString();
     }
-}
\ No newline at end of file
+}
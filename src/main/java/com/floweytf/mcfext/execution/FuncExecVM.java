@@ -0,0 +1,124 @@
+package com.floweytf.mcfext.execution;
+
+import com.mojang.brigadier.context.ContextChain;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.execution.ChainModifiers;
+import net.minecraft.commands.execution.CustomCommandExecutor;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.Frame;
+import net.minecraft.commands.execution.UnboundEntryAction;
+import net.minecraft.commands.execution.tasks.BuildContexts;
+import net.minecraft.commands.execution.tasks.ExecuteCommand;
+import net.minecraft.resources.ResourceLocation;
+
+import java.lang.invoke.WrongMethodTypeException;
+import java.util.List;
+
+/**
+ * A more direct execution engine for compiled functions, enabled with {@code -Dmcfext.engine=vm}.
+ * <p>
+ * On top of running control instructions inline (like {@link FuncExecTask}), commands that aren't behind
+ * {@code execute} and don't control execution themselves (such as {@code function} or {@code return}) are run
+ * directly from the interpreter loop. Vanilla would have the command queue an {@code ExecuteCommand} for its source,
+ * and run it as its own queue entry; the VM runs that {@code ExecuteCommand} in place instead, which charges the
+ * command the same way. Straight-line runs of such commands thus stay within a single queue entry.
+ * <p>
+ * Other commands are executed the same way vanilla does, and the VM yields back to the {@link ExecutionContext} when:
+ * <ul>
+ *     <li>A command queued work of its own (forks, {@code function} calls, ...), which must run before the next
+ *     instruction.</li>
+ *     <li>The command chain limit was reached, or the queue overflowed.</li>
+ *     <li>The function's frame was discarded (vanilla {@code return}), in which case execution stops.</li>
+ * </ul>
+ * Once a function gets hot, these are run through its {@link TieredCompiler.Body}, as direct calls.
+ *
+ * @see FuncExecTask
+ */
+public class FuncExecVM<T> extends FuncExecTask<T> {
+    private FuncExecVM(ResourceLocation id, List<UnboundEntryAction<T>> actions, Frame frame, T initialSource) {
+        super(id, actions, frame, initialSource);
+    }
+
+    public static <T> void schedule(ExecutionContext<T> c, Frame f, ResourceLocation id,
+                                    List<UnboundEntryAction<T>> actions, T source) {
+        if (actions.isEmpty())
+            return;
+
+        c.queueNext((new FuncExecVM<>(id, actions, f, source)).selfEntry);
+    }
+
+    /**
+     * Runs {@code command} the way the {@code ExecuteCommand} it would queue runs, if it is a terminal command with no
+     * modifiers, that runs on the current source.
+     *
+     * @return Whether the command was run.
+     */
+    private boolean executeTerminal(BuildContexts.Unbound<CommandSourceStack> command,
+                                    ExecutionContext<CommandSourceStack> exec, Frame frame) {
+        final var chain = command.command;
+        if (chain.getStage() != ContextChain.Stage.EXECUTE) {
+            return false;
+        }
+
+        final var context = chain.getTopContext();
+        if (context.getCommand() instanceof CustomCommandExecutor<?>) {
+            return false;
+        }
+
+        command.traceCommandStart(exec, frame);
+        // Charges the command, and reports errors to the source, exactly like the queued entry
+        new ExecuteCommand<>(command.commandInput, ChainModifiers.DEFAULT, context)
+            .execute((CommandSourceStack) state.source, exec, frame);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected boolean executePlain(UnboundEntryAction<T> task, ExecutionContext<T> exec, Frame frame) {
+        // Only brigadier commands are known to be safe to run outside their own queue entry. The queue checks the quota
+        // before running each entry, and so does the VM before each command.
+        if (!(task instanceof BuildContexts.Unbound<?> command) || exec.commandQuota <= 0) {
+            return super.executePlain(task, exec, frame);
+        }
+
+        final var queued = exec.newTopCommands.size();
+        final var index = state.instr++;
+        final var compiled = compiled();
+
+        final var ran = executeTerminal(
+            (BuildContexts.Unbound<CommandSourceStack>) command, (ExecutionContext<CommandSourceStack>) exec, frame
+        );
+
+        if (!ran) {
+            try {
+                if (compiled != null) {
+                    compiled.execute(index, state.source, exec, frame);
+                } else {
+                    task.execute(state.source, exec, frame);
+                }
+            } catch (LinkageError | WrongMethodTypeException e) {
+                if (compiled != null) {
+                    deoptimize(e);
+                }
+
+                throw e;
+            }
+        }
+
+        if (state.discarded) {
+            return false;
+        }
+
+        if (exec.newTopCommands.size() != queued || exec.queueOverflow) {
+            exec.queueNext(selfEntry);
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "FuncExecVM" + state.toString();
+    }
+}
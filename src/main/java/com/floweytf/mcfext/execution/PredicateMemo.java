@@ -0,0 +1,72 @@
+package com.floweytf.mcfext.execution;
+
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tick-scoped memoization of {@code if}/{@code unless predicate} results in lowered {@code run}/{@code loop} headers,
+ * enabled with {@code pragma enable memo_predicates}.
+ * <p>
+ * Results are keyed on the predicate id and on the parts of the source a predicate can observe: the entity, the level
+ * and the position. They are kept until the end of the tick, or until evicted (least recently used first) once there
+ * are more than {@link ExecConfig#PREDICATE_MEMO_SIZE} of them. Nothing else invalidates them, so a predicate observing
+ * state that changes during the tick (or a random one) sees the result of its first evaluation for the rest of the
+ * tick.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class PredicateMemo {
+    private record Key(ResourceLocation id, @Nullable Entity entity, ServerLevel level, Vec3 position) {
+    }
+
+    private static final Map<Key, Boolean> RESULTS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            if (size() > ExecConfig.PREDICATE_MEMO_SIZE) {
+                ExecStats.predicateMemoEvictions++;
+                return true;
+            }
+
+            return false;
+        }
+    };
+
+    private PredicateMemo() {
+    }
+
+    /**
+     * @param id     The id of the predicate.
+     * @param source The source to test the predicate against.
+     * @param test   Evaluates the predicate, if the result isn't known yet.
+     * @return The result of the predicate.
+     */
+    public static boolean test(ResourceLocation id, CommandSourceStack source, BooleanSupplier test) {
+        final var key = new Key(id, source.getEntity(), source.getLevel(), source.getPosition());
+        final var result = RESULTS.get(key);
+
+        if (result != null) {
+            ExecStats.predicateMemoHits++;
+            return result;
+        }
+
+        ExecStats.predicateMemoMisses++;
+        final var value = test.getAsBoolean();
+        RESULTS.put(key, value);
+        return value;
+    }
+
+    /**
+     * Drops every result, at the start of a tick.
+     */
+    public static void tick() {
+        RESULTS.clear();
+    }
+}
@@ -0,0 +1,137 @@
+package com.floweytf.mcfext.execution;
+
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.arguments.selector.EntitySelector;
+import net.minecraft.world.entity.Entity;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tick-scoped cache of entity selector results for lowered {@code run}/{@code loop} headers (see
+ * {@link SourcePipeline}), enabled with {@link ExecConfig#SELECTOR_CACHE}.
+ * <p>
+ * Only selectors whose results don't depend on the source are cached: {@code @e} and {@code @a}, using no options other
+ * than {@code type}, {@code tag}, {@code scores}, {@code limit} and {@code sort=arbitrary}. These don't depend on the
+ * position, level or entity of the source, so results are keyed on the selector text alone, and are shared by every
+ * function using the same selector. Everything else (positions, distances, sorting, {@code nbt}, {@code predicate},
+ * {@code name}, {@code team}, and so on) is never cached, since the engine can't tell when their results change.
+ * <p>
+ * Results are dropped at the start of every tick, and are otherwise kept for as long as nothing they depend on
+ * changes. Entities appearing, disappearing or dying invalidate every result, tag changes only invalidate results of
+ * selectors using {@code tag}, and score changes only those using {@code scores}.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class SelectorCache {
+    /**
+     * Implemented by {@link EntitySelector}, set when the selector is parsed.
+     */
+    public interface Holder {
+        /**
+         * @return The key to cache results of this selector under, or {@code null} if it can't be cached.
+         */
+        @Nullable
+        String monumenta$getCacheKey();
+
+        /**
+         * @return The {@code DEPENDS_*} flags of this selector.
+         */
+        int monumenta$getCacheDeps();
+
+        void monumenta$setCacheInfo(@Nullable String key, int deps);
+    }
+
+    public static final int DEPENDS_TAGS = 1;
+    public static final int DEPENDS_SCORES = 2;
+
+    private record Entry(List<? extends Entity> entities, long entityEpoch, long tagEpoch, long scoreEpoch) {
+    }
+
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private static long entityEpoch = 0;
+    private static long tagEpoch = 0;
+    private static long scoreEpoch = 0;
+
+    private SelectorCache() {
+    }
+
+    private static boolean isValid(Entry entry, int deps) {
+        return entry.entityEpoch == entityEpoch &&
+            ((deps & DEPENDS_TAGS) == 0 || entry.tagEpoch == tagEpoch) &&
+            ((deps & DEPENDS_SCORES) == 0 || entry.scoreEpoch == scoreEpoch);
+    }
+
+    /**
+     * Finds the entities matched by {@code selector}, through the fastest applicable lookup.
+     */
+    private static List<? extends Entity> lookup(EntitySelector selector, CommandSourceStack source)
+        throws CommandSyntaxException {
+        var entities = TagIndex.findEntities(selector, source);
+
+        if (entities == null) {
+            entities = SpatialQuery.findEntities(selector, source);
+        }
+
+        return entities != null ? entities : selector.findEntities(source);
+    }
+
+    /**
+     * Finds the entities matched by {@code selector}, from the cache if possible. The returned list must not be
+     * modified.
+     */
+    public static List<? extends Entity> findEntities(EntitySelector selector, CommandSourceStack source)
+        throws CommandSyntaxException {
+        final var holder = (Holder) selector;
+        final var key = holder.monumenta$getCacheKey();
+
+        // Sources without permission to use selectors still go through the vanilla check (and error)
+        if (!ExecConfig.SELECTOR_CACHE || key == null || !source.hasPermission(2)) {
+            return lookup(selector, source);
+        }
+
+        final var entry = ENTRIES.get(key);
+        if (entry != null && isValid(entry, holder.monumenta$getCacheDeps())) {
+            ExecStats.selectorCacheHits++;
+            return entry.entities;
+        }
+
+        ExecStats.selectorCacheMisses++;
+        final var entities = Collections.unmodifiableList(lookup(selector, source));
+        ENTRIES.put(key, new Entry(entities, entityEpoch, tagEpoch, scoreEpoch));
+        return entities;
+    }
+
+    /**
+     * Called when an entity starts or stops being visible to selectors, or dies.
+     */
+    public static void invalidateEntities() {
+        entityEpoch++;
+    }
+
+    /**
+     * Called when the tags of an entity change.
+     */
+    public static void invalidateTags() {
+        tagEpoch++;
+    }
+
+    /**
+     * Called when a score changes.
+     */
+    public static void invalidateScores() {
+        scoreEpoch++;
+    }
+
+    /**
+     * Drops every result, at the start of a tick.
+     */
+    public static void tick() {
+        ENTRIES.clear();
+    }
+}
@@ -0,0 +1,341 @@
+package com.floweytf.mcfext.execution;
+
+import com.google.common.collect.Iterators;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.exceptions.DynamicCommandExceptionType;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.arguments.selector.EntitySelector;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.TraceCallbacks;
+import net.minecraft.network.chat.Component;
+import net.minecraft.world.entity.Entity;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import static com.floweytf.mcfext.util.CommandUtil.exceptionType;
+
+/**
+ * A precompiled {@code run}/{@code loop} header (such as {@code run as @e at @s {}}), as a sequence of typed source
+ * transforms. Applying the pipeline runs the transforms directly, instead of going through brigadier's fork/redirect
+ * dispatch, which builds a new source list for every modifier. Sources flow through the stages depth-first, so no
+ * intermediate lists are built at all.
+ * <p>
+ * Errors are handled the same way as vanilla: a stage that fails for a source reports the error (unless the header is
+ * forked by then) and drops that source. Like vanilla, every application of the pipeline costs one command per stage
+ * against the command chain limit, however many sources flow through it, and a stage producing as many sources as the
+ * fork limit reports the error on the original source and aborts the whole application.
+ * <p>
+ * Pipelines can also be {@linkplain #stream streamed}, in which case every stage is only evaluated once the next source
+ * is actually needed.
+ *
+ * @see com.floweytf.mcfext.util.ExecuteCommandUtils#lowerV1ControlFlow
+ */
+public final class SourcePipeline {
+    private static final DynamicCommandExceptionType ERROR_FORK_LIMIT_REACHED = exceptionType(
+        limit -> Component.translatableEscape("command.forkLimit", limit)
+    );
+
+    /**
+     * A single modifier of a header.
+     */
+    @FunctionalInterface
+    public interface Stage {
+        /**
+         * @param source The source to apply the modifier to.
+         * @param out    Receives the resulting sources, in order.
+         */
+        void apply(CommandSourceStack source, Consumer<CommandSourceStack> out) throws CommandSyntaxException;
+
+        /**
+         * Applies the modifier lazily. By default, the results are computed eagerly.
+         *
+         * @return The resulting sources, in order.
+         */
+        default Iterator<CommandSourceStack> expand(CommandSourceStack source) throws CommandSyntaxException {
+            final var out = new ArrayList<CommandSourceStack>();
+            apply(source, out::add);
+            return out.iterator();
+        }
+    }
+
+    /**
+     * A modifier producing at most one source for every source (redirects and conditions).
+     */
+    @FunctionalInterface
+    public interface SingleStage extends Stage {
+        /**
+         * @return The resulting source, or {@code null} if the source is filtered out.
+         */
+        @Nullable
+        CommandSourceStack map(CommandSourceStack source) throws CommandSyntaxException;
+
+        @Override
+        default void apply(CommandSourceStack source, Consumer<CommandSourceStack> out) throws CommandSyntaxException {
+            final var result = map(source);
+            if (result != null) {
+                out.accept(result);
+            }
+        }
+
+        @Override
+        default Iterator<CommandSourceStack> expand(CommandSourceStack source) throws CommandSyntaxException {
+            final var result = map(source);
+            return result == null ? Collections.emptyIterator() : Iterators.singletonIterator(result);
+        }
+    }
+
+    /**
+     * A modifier producing a source for every entity matched by a selector (such as {@code as} or {@code at}). When
+     * streamed, the selector is evaluated eagerly, but sources are only created as they are needed.
+     */
+    private record ForEachEntity(
+        EntitySelector selector, BiFunction<CommandSourceStack, Entity, CommandSourceStack> mapper
+    ) implements Stage {
+        @Override
+        public void apply(CommandSourceStack source, Consumer<CommandSourceStack> out) throws CommandSyntaxException {
+            for (Entity entity : SelectorCache.findEntities(selector, source)) {
+                out.accept(mapper.apply(source, entity));
+            }
+        }
+
+        @Override
+        public Iterator<CommandSourceStack> expand(CommandSourceStack source) throws CommandSyntaxException {
+            final Iterator<? extends Entity> entities = SelectorCache.findEntities(selector, source).iterator();
+            return Iterators.transform(entities, entity -> mapper.apply(source, entity));
+        }
+    }
+
+    /**
+     * A stream over the results of the pipeline. Each level holds the pending results of the previous stage, so only a
+     * single source per stage is being worked on at a time.
+     */
+    private final class Stream implements Iterator<CommandSourceStack> {
+        private final Iterator<?>[] levels = new Iterator<?>[stages.length + 1];
+        private final CommandSourceStack origin;
+        private final int forkLimit;
+        @Nullable
+        private final TraceCallbacks tracer;
+        private final int[] produced = new int[stages.length];
+        private int depth = 0;
+        @Nullable
+        private CommandSourceStack next;
+
+        private Stream(CommandSourceStack source, ExecutionContext<CommandSourceStack> context) {
+            this.levels[0] = Iterators.singletonIterator(source);
+            this.origin = source;
+            this.forkLimit = context.forkLimit();
+            this.tracer = context.tracer();
+        }
+
+        @Nullable
+        private CommandSourceStack advance() {
+            while (depth >= 0) {
+                if (!levels[depth].hasNext()) {
+                    levels[depth--] = null;
+                    continue;
+                }
+
+                final var source = (CommandSourceStack) levels[depth].next();
+
+                // Level n holds the sources produced by stage n - 1
+                if (depth > 0 && ++produced[depth - 1] >= forkLimit) {
+                    reportForkLimit(origin, depth - 1, forkLimit, tracer);
+                    Arrays.fill(levels, null);
+                    depth = -1;
+                    break;
+                }
+
+                if (depth == stages.length) {
+                    return source;
+                }
+
+                try {
+                    levels[depth + 1] = stages[depth].expand(source);
+                    depth++;
+                } catch (CommandSyntaxException e) {
+                    source.handleError(e, forked[depth], tracer);
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = advance();
+            }
+
+            return next != null;
+        }
+
+        @Override
+        public CommandSourceStack next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final var result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    /**
+     * A modifier producing a source for every entity matched by {@code selector}.
+     */
+    public static Stage forEachEntity(EntitySelector selector,
+                                      BiFunction<CommandSourceStack, Entity, CommandSourceStack> mapper) {
+        return new ForEachEntity(selector, mapper);
+    }
+
+    /**
+     * A single eager application of the pipeline, which counts the sources produced by every stage.
+     */
+    private final class Application {
+        private final CommandSourceStack origin;
+        private final List<CommandSourceStack> out;
+        private final int forkLimit;
+        @Nullable
+        private final TraceCallbacks tracer;
+        private final int[] produced = new int[stages.length];
+        private boolean aborted = false;
+
+        private Application(CommandSourceStack origin, List<CommandSourceStack> out,
+                            ExecutionContext<CommandSourceStack> context) {
+            this.origin = origin;
+            this.out = out;
+            this.forkLimit = context.forkLimit();
+            this.tracer = context.tracer();
+        }
+
+        private void run(int index, CommandSourceStack source) {
+            if (index == stages.length) {
+                out.add(source);
+                return;
+            }
+
+            try {
+                stages[index].apply(source, next -> {
+                    if (aborted) {
+                        return;
+                    }
+
+                    if (++produced[index] >= forkLimit) {
+                        reportForkLimit(origin, index, forkLimit, tracer);
+                        aborted = true;
+                        return;
+                    }
+
+                    run(index + 1, next);
+                });
+            } catch (CommandSyntaxException e) {
+                if (!aborted) {
+                    source.handleError(e, forked[index], tracer);
+                }
+            }
+        }
+    }
+
+    private final Stage[] stages;
+    private final boolean[] forked;
+    private final boolean single;
+
+    /**
+     * @param stages The stages of the header, in order.
+     * @param forked For every stage, whether the header is forked by then, in which case errors aren't reported.
+     */
+    public SourcePipeline(List<Stage> stages, boolean[] forked) {
+        this.stages = stages.toArray(Stage[]::new);
+        this.forked = forked;
+        this.single = stages.stream().allMatch(SingleStage.class::isInstance);
+    }
+
+    /**
+     * @return Whether the header produces at most one source, see {@link #applySingle}.
+     */
+    public boolean isSingle() {
+        return single;
+    }
+
+    /**
+     * Reports that {@code stage} produced as many sources as the fork limit, the same way vanilla does.
+     */
+    private void reportForkLimit(CommandSourceStack origin, int stage, int forkLimit, @Nullable TraceCallbacks tracer) {
+        origin.handleError(ERROR_FORK_LIMIT_REACHED.create(forkLimit), forked[stage], tracer);
+    }
+
+    /**
+     * Charges the stages of the pipeline, the same way brigadier charges every modifier of a command it runs.
+     */
+    private void charge(ExecutionContext<CommandSourceStack> context) {
+        for (int i = 0; i < stages.length; i++) {
+            context.incrementCost();
+        }
+    }
+
+    /**
+     * Applies the pipeline to {@code source}, appending the results to {@code out}. Nothing is appended if the fork
+     * limit is reached.
+     */
+    public void apply(CommandSourceStack source, List<CommandSourceStack> out,
+                      ExecutionContext<CommandSourceStack> context) {
+        charge(context);
+
+        final var start = out.size();
+        final var application = new Application(source, out, context);
+        application.run(0, source);
+
+        if (application.aborted) {
+            out.subList(start, out.size()).clear();
+        }
+    }
+
+    /**
+     * Applies the pipeline to {@code source} lazily. Stages run as the returned iterator advances, so they observe the
+     * state of the world at that point, rather than when the stream was created. The stages are charged up front, and
+     * the stream ends once the fork limit is reached, after the sources it already returned.
+     */
+    public Iterator<CommandSourceStack> stream(CommandSourceStack source,
+                                               ExecutionContext<CommandSourceStack> context) {
+        charge(context);
+        return new Stream(source, context);
+    }
+
+    /**
+     * Applies a pipeline made of {@link SingleStage}s only.
+     *
+     * @return The resulting source, or {@code null} if there is none.
+     */
+    @Nullable
+    public CommandSourceStack applySingle(CommandSourceStack source, ExecutionContext<CommandSourceStack> context) {
+        charge(context);
+
+        final var origin = source;
+        final var tracer = context.tracer();
+        for (int i = 0; i < stages.length && source != null; i++) {
+            try {
+                source = ((SingleStage) stages[i]).map(source);
+            } catch (CommandSyntaxException e) {
+                source.handleError(e, forked[i], tracer);
+                return null;
+            }
+
+            // A stage produces at most one source, which only reaches a fork limit of 1 or less
+            if (source != null && context.forkLimit() <= 1) {
+                reportForkLimit(origin, i, context.forkLimit(), tracer);
+                return null;
+            }
+        }
+
+        return source;
+    }
+
+    @Override
+    public String toString() {
+        return "SourcePipeline[" + stages.length + " stages" + (single ? ", single" : "") + "]";
+    }
+}
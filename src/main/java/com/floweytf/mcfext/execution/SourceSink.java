@@ -0,0 +1,30 @@
+package com.floweytf.mcfext.execution;
+
+import net.minecraft.commands.CommandResultCallback;
+import net.minecraft.commands.execution.Frame;
+
+import java.util.List;
+
+/**
+ * Side channel used to collect the sources matched by a control flow header (such as {@code run as @e {}}). It's
+ * attached to the {@link Frame} the header executes in as the return value consumer, which the terminal command can
+ * reach through {@code ExecutionControl#currentFrame()}. This way, the sources themselves don't need to carry any
+ * extra state, and modifiers don't have to copy them around.
+ *
+ * @param sources  The list matched sources are appended to.
+ * @param delegate The return value consumer of the original frame, which results are forwarded to.
+ * @param <T>      The command source type.
+ */
+public record SourceSink<T>(List<T> sources, CommandResultCallback delegate) implements CommandResultCallback {
+    /**
+     * Creates a copy of {@code frame} which collects matched sources into {@code sources}.
+     */
+    public static <T> Frame attach(Frame frame, List<T> sources) {
+        return new Frame(frame.depth(), new SourceSink<>(sources, frame.returnValueConsumer()), frame.frameControl());
+    }
+
+    @Override
+    public void onResult(boolean success, int result) {
+        delegate.onResult(success, result);
+    }
+}
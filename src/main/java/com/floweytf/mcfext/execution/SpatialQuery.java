@@ -0,0 +1,133 @@
+package com.floweytf.mcfext.execution;
+
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.arguments.selector.EntitySelector;
+import net.minecraft.commands.arguments.selector.EntitySelectorParser;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.phys.AABB;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Faster lookup of distance and volume bounded selectors ({@code distance=..8}, {@code dx=...}) in lowered
+ * {@code run}/{@code loop} headers. Enabled with {@link ExecConfig#SPATIAL_QUERY}.
+ * <p>
+ * Vanilla already only visits the chunk sections overlapping the bounds of such selectors, but its bounds for
+ * {@code distance} are a block larger than needed on the positive side of every axis. This queries the level with the
+ * tightest bounds implied by the selector, so fewer sections (and entities) are visited. The selector's type test is
+ * passed through unchanged, so the server's own fast path for typed lookups still applies.
+ * <p>
+ * Results are meant to be the same as vanilla's, in the same order, but this hasn't been verified on a live server
+ * yet, which is why it is off by default. With {@link ExecConfig#SPATIAL_VERIFY}, every query is also run through
+ * vanilla, and mismatches are logged and counted.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class SpatialQuery {
+    /**
+     * Implemented by {@link EntitySelector}, set when the selector is parsed.
+     */
+    public interface SpatialSelector {
+        /**
+         * @return Whether the selector selects entities by distance or volume, and nothing else about it prevents a
+         * spatial query (such as being {@code @s}, or a player name).
+         */
+        boolean monumenta$isSpatial();
+
+        void monumenta$setSpatial(boolean spatial);
+    }
+
+    private static final double EPSILON = 1e-4;
+
+    private static final Logger LOGGER = LogManager.getLogger("FunctionExecutor");
+
+    private SpatialQuery() {
+    }
+
+    private static double volume(AABB box) {
+        return (box.maxX - box.minX) * (box.maxY - box.minY) * (box.maxZ - box.minZ);
+    }
+
+    /**
+     * Finds the entities matched by {@code selector} with a spatial query.
+     *
+     * @return The matched entities, or {@code null} if the selector isn't bounded by distance or volume.
+     */
+    @Nullable
+    public static List<? extends Entity> findEntities(EntitySelector selector, CommandSourceStack source) {
+        final var maxDistance = selector.range.max();
+
+        // Sources without permission to use selectors still go through the vanilla check (and error)
+        if (!ExecConfig.SPATIAL_QUERY || !((SpatialSelector) selector).monumenta$isSpatial() ||
+            !selector.isWorldLimited() || (maxDistance.isEmpty() && selector.aabb == null) ||
+            !source.hasPermission(2)) {
+            return null;
+        }
+
+        final var pos = selector.position.apply(source.getPosition());
+
+        // An entity within the distance has its position, and thus its bounding box, inside this box (made slightly
+        // larger, since intersection tests are strict). Entities must also intersect the selector's own bounds, so
+        // either box bounds the query, and the smaller one is used.
+        AABB bounds = null;
+        if (maxDistance.isPresent()) {
+            final double d = maxDistance.get() + EPSILON;
+            bounds = new AABB(pos.x() - d, pos.y() - d, pos.z() - d, pos.x() + d, pos.y() + d, pos.z() + d);
+        }
+
+        final var volume = selector.aabb != null ? selector.aabb.move(pos) : null;
+        if (volume != null && (bounds == null || volume(volume) < volume(bounds))) {
+            bounds = volume;
+        }
+
+        // Same as EntitySelector.getPredicate
+        Predicate<Entity> predicate = selector.predicate;
+        if (volume != null) {
+            predicate = predicate.and(entity -> volume.intersects(entity.getBoundingBox()));
+        }
+        if (!selector.range.isAny()) {
+            predicate = predicate.and(entity -> selector.range.matchesSqr(entity.distanceToSqr(pos)));
+        }
+
+        // Same as EntitySelector.findEntities
+        final var limit = selector.order == EntitySelectorParser.ORDER_ARBITRARY ?
+            selector.getMaxResults() : Integer.MAX_VALUE;
+        List<Entity> result = new ArrayList<>();
+        source.getLevel().getEntities(selector.type, bounds, predicate, result, limit);
+
+        selector.order.accept(pos, result);
+        if (result.size() > selector.getMaxResults()) {
+            result = result.subList(0, selector.getMaxResults());
+        }
+        result.removeIf(entity -> !entity.getType().isEnabled(source.enabledFeatures()));
+
+        ExecStats.spatialQueries++;
+
+        if (ExecConfig.SPATIAL_VERIFY) {
+            verify(selector, source, result);
+        }
+
+        return result;
+    }
+
+    private static void verify(EntitySelector selector, CommandSourceStack source, List<Entity> result) {
+        try {
+            final var expected = selector.findEntities(source);
+
+            if (!expected.equals(result)) {
+                ExecStats.spatialMismatches++;
+                LOGGER.warn("Spatial query mismatch at {}: got {}, expected {}", source.getPosition(), result,
+                    expected);
+            }
+        } catch (CommandSyntaxException e) {
+            ExecStats.spatialMismatches++;
+            LOGGER.warn("Spatial query succeeded where vanilla failed: {}", e.getRawMessage().getString());
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.floweytf.mcfext.execution;
+
+import com.floweytf.mcfext.execution.instr.ControlInstr;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.minecraft.commands.execution.UnboundEntryAction;
+
+import java.util.List;
+
+/**
+ * Verifies the stack usage of a linked function, similar to the JVM's bytecode verifier.
+ * <p>
+ * The function is split into procedures: the function body itself, the targets of {@code CALL} (which return by
+ * popping the address pushed by the call) and subroutines (which return by unwinding to their base pointer). Each
+ * procedure is abstractly interpreted on its own, tracking the type of every stack entry (and the value of instruction
+ * addresses) at every instruction. Every instruction must see the same stack no matter how it is reached, must never
+ * pop entries of the wrong type, and must never reach below its own procedure's frame.
+ * <p>
+ * A function that verifies can never trigger a stack check at runtime, so it may run with an unchecked
+ * {@link FuncExecStack}. Instructions describe their effect by overriding {@link ControlInstr#verify}; a function
+ * containing an instruction that doesn't is left unverified, and keeps the runtime checks.
+ */
+public class StackVerifier {
+    /**
+     * Thrown when a function is malformed.
+     */
+    public static class VerifyException extends RuntimeException {
+        public VerifyException(String message) {
+            super(message);
+        }
+    }
+
+    private static class UnverifiableException extends RuntimeException {
+        UnverifiableException() {
+            super(null, null, false, false);
+        }
+    }
+
+    public enum Result {
+        VERIFIED,
+        UNVERIFIABLE
+    }
+
+    private enum ProcedureKind {
+        MAIN,
+        CALL,
+        SUBROUTINE
+    }
+
+    private record Procedure(ProcedureKind kind, boolean inSubroutine) {
+    }
+
+    // Abstract stack values; non-negative values are instruction addresses
+    private static final int RETURN_ADDRESS = -1;
+    private static final int SOURCE = -2;
+    private static final int SOURCE_LIST = -3;
+    private static final int SOURCE_CURSOR = -4;
+
+    private static int encode(FuncExecStack.Type type) {
+        return switch (type) {
+        case CONTEXT -> SOURCE;
+        case CONTEXT_LIST -> SOURCE_LIST;
+        case CONTEXT_CURSOR -> SOURCE_CURSOR;
+        case INSTR_ADDRESS -> throw new IllegalArgumentException("instruction addresses need a value");
+        };
+    }
+
+    private static String describe(int value) {
+        return switch (value) {
+        case RETURN_ADDRESS -> "ReturnAddress";
+        case SOURCE -> "Source";
+        case SOURCE_LIST -> "SourceList";
+        case SOURCE_CURSOR -> "SourceCursor";
+        default -> "InstrAddress[" + value + "]";
+        };
+    }
+
+    private static String describe(IntArrayList stack) {
+        final var builder = new StringBuilder("[");
+        for (int i = 0; i < stack.size(); i++) {
+            if (i != 0) {
+                builder.append(", ");
+            }
+            builder.append(describe(stack.getInt(i)));
+        }
+        return builder.append("]").toString();
+    }
+
+    /**
+     * The view of the stack an instruction gets while being verified. Operations are applied in order, and branches
+     * snapshot the stack as it is at the time of the call. Unless the instruction jumps, exits or returns, execution
+     * falls through to the next instruction with the final stack.
+     */
+    public final class Context {
+        private final Procedure procedure;
+        private final int floor;
+        private final int index;
+        private final IntArrayList stack;
+        private boolean fallsThrough = true;
+
+        private Context(Procedure procedure, int floor, int index, IntArrayList stack) {
+            this.procedure = procedure;
+            this.floor = floor;
+            this.index = index;
+            this.stack = stack;
+        }
+
+        private int top(String op) {
+            if (stack.size() <= floor) {
+                throw new VerifyException(op + " below the frame of the current procedure");
+            }
+
+            return stack.getInt(stack.size() - 1);
+        }
+
+        private void expect(int actual, int expected, String op) {
+            if (actual != expected) {
+                throw new VerifyException(op + " expected " + describe(expected) + ", found " + describe(actual));
+            }
+        }
+
+        public void push(FuncExecStack.Type type) {
+            stack.add(encode(type));
+        }
+
+        public void pushAddress(int target) {
+            stack.add(target);
+        }
+
+        public void peek(FuncExecStack.Type type) {
+            expect(top("peek"), encode(type), "peek");
+        }
+
+        public void pop(FuncExecStack.Type type) {
+            expect(top("pop"), encode(type), "pop");
+            stack.popInt();
+        }
+
+        /**
+         * Adds {@code target} as a possible successor, with the current stack.
+         */
+        public void branch(int target) {
+            mergeInto(procedure, target, stack);
+        }
+
+        /**
+         * Unconditionally continues at {@code target}.
+         */
+        public void jump(int target) {
+            branch(target);
+            fallsThrough = false;
+        }
+
+        /**
+         * Stops executing the function.
+         */
+        public void exit() {
+            fallsThrough = false;
+        }
+
+        /**
+         * Calls the {@code CALL} procedure at {@code target}, which returns to the next instruction.
+         */
+        public void call(int target) {
+            call(target, index + 1);
+        }
+
+        /**
+         * Calls the {@code CALL} procedure at {@code target}, which returns to {@code returnTo}.
+         */
+        public void call(int target, int returnTo) {
+            registerProcedure(target, new Procedure(ProcedureKind.CALL, procedure.inSubroutine()));
+            branch(returnTo);
+        }
+
+        /**
+         * Pops an instruction address, and continues there.
+         */
+        public void ret() {
+            if (stack.size() == floor && procedure.kind() == ProcedureKind.CALL) {
+                // returning to whoever called this procedure
+                stack.popInt();
+                fallsThrough = false;
+                return;
+            }
+
+            final var target = top("ret");
+            if (target < 0) {
+                throw new VerifyException("ret expected InstrAddress, found " + describe(target));
+            }
+
+            stack.popInt();
+            jump(target);
+        }
+
+        public void subroutineCall(int target) {
+            registerProcedure(target, new Procedure(ProcedureKind.SUBROUTINE, true));
+            branch(index + 1);
+        }
+
+        public void subroutineTailCall(int target) {
+            registerProcedure(target, new Procedure(ProcedureKind.SUBROUTINE, true));
+            subroutineRet();
+        }
+
+        public void subroutineRet() {
+            if (!procedure.inSubroutine()) {
+                throw new VerifyException("subroutine return outside of a subroutine");
+            }
+
+            fallsThrough = false;
+        }
+
+        /**
+         * Marks the instruction as having an effect on the stack the verifier can't describe.
+         */
+        public void unverifiable() {
+            throw new UnverifiableException();
+        }
+    }
+
+    private final List<UnboundEntryAction<?>> actions;
+    private final Int2ObjectOpenHashMap<Procedure> procedures = new Int2ObjectOpenHashMap<>();
+    private final IntArrayList pendingProcedures = new IntArrayList();
+
+    private IntArrayList[] states;
+    private IntArrayList worklist;
+
+    private StackVerifier(List<UnboundEntryAction<?>> actions) {
+        this.actions = actions;
+    }
+
+    /**
+     * Verifies a linked function.
+     *
+     * @return Whether the function could be verified.
+     * @throws VerifyException If the function is malformed.
+     */
+    public static Result verify(List<? extends UnboundEntryAction<?>> actions) {
+        return verify(actions, IntList.of());
+    }
+
+    /**
+     * Verifies a linked function, whose subroutines may also be called from other functions.
+     *
+     * @param subroutines The entries of subroutines callable from other functions. These are verified even if the
+     *                    function never calls them itself.
+     * @return Whether the function could be verified.
+     * @throws VerifyException If the function is malformed.
+     */
+    @SuppressWarnings("unchecked")
+    public static Result verify(List<? extends UnboundEntryAction<?>> actions, IntCollection subroutines) {
+        try {
+            new StackVerifier((List<UnboundEntryAction<?>>) actions).run(subroutines);
+            return Result.VERIFIED;
+        } catch (UnverifiableException e) {
+            return Result.UNVERIFIABLE;
+        }
+    }
+
+    private void registerProcedure(int entry, Procedure procedure) {
+        final var prev = procedures.putIfAbsent(entry, procedure);
+
+        if (prev == null) {
+            pendingProcedures.add(entry);
+        } else if (!prev.equals(procedure)) {
+            throw new VerifyException("instruction " + entry + " is the entry of conflicting procedures");
+        }
+    }
+
+    private void run(IntCollection subroutines) {
+        registerProcedure(0, new Procedure(ProcedureKind.MAIN, false));
+        subroutines.forEach(entry -> registerProcedure(entry, new Procedure(ProcedureKind.SUBROUTINE, true)));
+
+        while (!pendingProcedures.isEmpty()) {
+            final var entry = pendingProcedures.popInt();
+            verifyProcedure(entry, procedures.get(entry));
+        }
+    }
+
+    private void mergeInto(Procedure procedure, int target, IntArrayList stack) {
+        // Past the end (including exit branches) stops execution
+        if (target >= actions.size()) {
+            return;
+        }
+
+        if (target < 0) {
+            throw new VerifyException("branch to invalid instruction " + target);
+        }
+
+        final var prev = states[target];
+
+        if (prev == null) {
+            states[target] = new IntArrayList(stack);
+            worklist.add(target);
+        } else if (!prev.equals(stack)) {
+            throw new VerifyException(
+                "inconsistent stack at instruction " + target + ": " + describe(prev) + " and " + describe(stack)
+            );
+        }
+    }
+
+    private void verifyProcedure(int entry, Procedure procedure) {
+        states = new IntArrayList[actions.size()];
+        worklist = new IntArrayList();
+
+        // The part of the caller's frame that belongs to the call itself
+        final var initial = new IntArrayList();
+        switch (procedure.kind()) {
+        case MAIN -> {
+        }
+        case CALL -> initial.add(RETURN_ADDRESS);
+        case SUBROUTINE -> {
+            initial.add(RETURN_ADDRESS);
+            initial.add(SOURCE);
+        }
+        }
+
+        final var floor = initial.size();
+        mergeInto(procedure, entry, initial);
+
+        while (!worklist.isEmpty()) {
+            final var index = worklist.popInt();
+            final var action = actions.get(index);
+
+            if (!(action instanceof ControlInstr<?> instr)) {
+                mergeInto(procedure, index + 1, states[index]);
+                continue;
+            }
+
+            final var context = new Context(procedure, floor, index, new IntArrayList(states[index]));
+
+            try {
+                instr.verify(context);
+            } catch (VerifyException e) {
+                throw new VerifyException("instruction " + index + " (" + instr + "): " + e.getMessage());
+            }
+
+            if (context.fallsThrough) {
+                mergeInto(procedure, index + 1, context.stack);
+            }
+        }
+    }
+}
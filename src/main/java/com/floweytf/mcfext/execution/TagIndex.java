@@ -0,0 +1,190 @@
+package com.floweytf.mcfext.execution;
+
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.arguments.selector.EntitySelector;
+import net.minecraft.world.entity.Entity;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index from entity tags to the loaded entities with that tag, used to answer {@code @e[tag=...]} selectors in lowered
+ * {@code run}/{@code loop} headers in O(matches) rather than by scanning every entity. Enabled with
+ * {@link ExecConfig#TAG_INDEX}, which also turns on keeping the index up to date.
+ * <p>
+ * The index covers entities that are tracked by their level (the ones visible to selectors), and is kept up to date by
+ * mixins: entities are added and removed as they start and stop being tracked, and on every tag change, including
+ * tags replaced by loading NBT.
+ * <p>
+ * A selector uses the index if it is an {@code @e} selector with a (non-inverted) {@code tag} option, and without any
+ * option depending on positions or on the order of entities ({@code x}, {@code distance}, {@code sort}, {@code limit},
+ * and so on). The indexed entities are then filtered by the selector as usual, so the same entities are matched as
+ * vanilla, but in the order they got the tag. Vanilla's order is the iteration order of each level's entity lookup,
+ * which on Paper is a hash map keyed by entity id, so it isn't reproduced. With {@link ExecConfig#TAG_INDEX_VERIFY},
+ * every lookup is also run through vanilla, and mismatches are logged and counted.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class TagIndex {
+    /**
+     * Implemented by {@link EntitySelector}, set when the selector is parsed.
+     */
+    public interface IndexedSelector {
+        /**
+         * @return The tag to look up entities by, or {@code null} if the selector can't use the index.
+         */
+        @Nullable
+        String monumenta$getIndexTag();
+
+        void monumenta$setIndexTag(@Nullable String tag);
+    }
+
+    /**
+     * Implemented by {@link Entity}.
+     */
+    public interface IndexedEntity {
+        boolean monumenta$isIndexed();
+
+        void monumenta$setIndexed(boolean indexed);
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger("FunctionExecutor");
+
+    private static final Map<String, Set<Entity>> ENTITIES = new HashMap<>();
+
+    private TagIndex() {
+    }
+
+    private static void add(String tag, Entity entity) {
+        ENTITIES.computeIfAbsent(tag, k -> new LinkedHashSet<>()).add(entity);
+    }
+
+    private static void remove(String tag, Entity entity) {
+        final var entities = ENTITIES.get(tag);
+
+        if (entities != null && entities.remove(entity) && entities.isEmpty()) {
+            ENTITIES.remove(tag);
+        }
+    }
+
+    /**
+     * Called when an entity starts being tracked.
+     */
+    public static void onTrackingStart(Entity entity) {
+        if (!ExecConfig.TAG_INDEX) {
+            return;
+        }
+
+        ((IndexedEntity) entity).monumenta$setIndexed(true);
+        entity.getTags().forEach(tag -> add(tag, entity));
+    }
+
+    /**
+     * Called when an entity stops being tracked.
+     */
+    public static void onTrackingEnd(Entity entity) {
+        if (!((IndexedEntity) entity).monumenta$isIndexed()) {
+            return;
+        }
+
+        ((IndexedEntity) entity).monumenta$setIndexed(false);
+        entity.getTags().forEach(tag -> remove(tag, entity));
+    }
+
+    /**
+     * Called when a tag is added to an entity.
+     */
+    public static void onTagAdded(Entity entity, String tag) {
+        if (((IndexedEntity) entity).monumenta$isIndexed()) {
+            add(tag, entity);
+        }
+    }
+
+    /**
+     * Called when a tag is removed from an entity.
+     */
+    public static void onTagRemoved(Entity entity, String tag) {
+        if (((IndexedEntity) entity).monumenta$isIndexed()) {
+            remove(tag, entity);
+        }
+    }
+
+    /**
+     * Called before the tags of an entity are replaced wholesale, when it loads NBT.
+     */
+    public static void beforeLoad(Entity entity) {
+        if (((IndexedEntity) entity).monumenta$isIndexed()) {
+            entity.getTags().forEach(tag -> remove(tag, entity));
+        }
+    }
+
+    /**
+     * Called after an entity loaded NBT.
+     */
+    public static void afterLoad(Entity entity) {
+        if (((IndexedEntity) entity).monumenta$isIndexed()) {
+            entity.getTags().forEach(tag -> add(tag, entity));
+        }
+    }
+
+    /**
+     * Finds the entities matched by {@code selector} through the index.
+     *
+     * @return The matched entities, or {@code null} if the selector can't use the index.
+     */
+    @Nullable
+    public static List<? extends Entity> findEntities(EntitySelector selector, CommandSourceStack source) {
+        final var tag = ((IndexedSelector) selector).monumenta$getIndexTag();
+
+        // Sources without permission to use selectors still go through the vanilla check (and error)
+        if (!ExecConfig.TAG_INDEX || tag == null || !source.hasPermission(2)) {
+            return null;
+        }
+
+        final var candidates = ENTITIES.getOrDefault(tag, Set.of());
+        final var result = new ArrayList<Entity>();
+
+        // Same filtering as Level.getEntities and EntitySelector.findEntities
+        for (Entity entity : candidates) {
+            final var cast = selector.type.tryCast(entity);
+
+            if (cast != null && selector.predicate.test(cast) && cast.getType().isEnabled(source.enabledFeatures())) {
+                result.add(cast);
+            }
+        }
+
+        ExecStats.tagIndexLookups++;
+        ExecStats.tagIndexCandidates += candidates.size();
+
+        if (ExecConfig.TAG_INDEX_VERIFY) {
+            verify(selector, source, result);
+        }
+
+        return result;
+    }
+
+    private static void verify(EntitySelector selector, CommandSourceStack source, List<Entity> result) {
+        try {
+            final var expected = selector.findEntities(source);
+
+            if (!expected.equals(result)) {
+                ExecStats.tagIndexMismatches++;
+                LOGGER.warn("Tag index mismatch ({}) for tag {}: got {}, expected {}",
+                    new HashSet<>(expected).equals(new HashSet<>(result)) ? "order only" : "entities",
+                    ((IndexedSelector) selector).monumenta$getIndexTag(), result, expected);
+            }
+        } catch (CommandSyntaxException e) {
+            ExecStats.tagIndexMismatches++;
+            LOGGER.warn("Tag index lookup succeeded where vanilla failed: {}", e.getRawMessage().getString());
+        }
+    }
+}
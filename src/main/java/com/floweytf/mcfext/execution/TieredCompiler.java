@@ -0,0 +1,347 @@
+package com.floweytf.mcfext.execution;
+
+import com.floweytf.mcfext.execution.instr.ControlInstr;
+import com.floweytf.mcfext.execution.instr.FusedInstr;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.Frame;
+import net.minecraft.commands.execution.UnboundEntryAction;
+import net.minecraft.resources.ResourceLocation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Second execution tier: compiles hot functions into a JVM hidden class, see {@link CompiledActionList#tier2()}.
+ * <p>
+ * The interpreter ({@link FuncExecTask}) dispatches every instruction through an interface call, which is megamorphic
+ * across all the instructions of all functions, so the JIT can't inline any of it. A compiled function instead has a
+ * {@link Body} with a {@code tableswitch} over the instruction index, where every case invokes its instruction through
+ * a constant {@link MethodHandle} bound to that instruction. Each call site thus only ever sees a single receiver, and
+ * the JIT can inline the instruction (down to the lambda of a {@link ControlInstr.Named}) into the case. The switch is
+ * in a loop, so consecutive control instructions run without going back to the interpreter; between two instructions,
+ * the body checks and charges the next one exactly like the interpreter would (see {@link #proceed}). Fused traces (see
+ * {@link FusedInstr}) only run their first part, since the loop already runs the rest of the trace.
+ * <p>
+ * Instructions are closures rather than bytecode, so they can't be translated any further: the stack stays in the
+ * {@link FuncExecStack}, which also has to survive suspension and parking, and plain commands are still queued by the
+ * interpreter. The {@code VM} engine also runs plain commands through the compiled body, making them direct calls.
+ * <p>
+ * Classes are defined as (non-strong) hidden classes, only referenced from their {@link CompiledActionList}. When
+ * {@code /reload} replaces a function, the old class is unloaded along with the old list, once no running task uses
+ * it anymore.
+ */
+public final class TieredCompiler {
+    /**
+     * The compiled dispatch of a function, implemented by generated classes.
+     */
+    public interface Body<T> {
+        /**
+         * Runs the control instruction at {@code index}, like {@link FuncExecTask} would: {@code execute}, then
+         * {@code modifyState} with {@link FuncExecState#instr} pointing to the next instruction. Then keeps running
+         * the control instructions that follow, for as long as {@link #proceed} allows.
+         */
+        void step(int index, FuncExecState<T> state, ExecutionContext<T> context, Frame frame);
+
+        /**
+         * Executes the plain instruction at {@code index}.
+         */
+        void execute(int index, T source, ExecutionContext<T> context, Frame frame);
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger("FunctionExecutor");
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType MODIFY_TYPE =
+        MethodType.methodType(void.class, FuncExecState.class, ExecutionContext.class, Frame.class);
+    private static final MethodType EXECUTE_TYPE =
+        MethodType.methodType(void.class, Object.class, ExecutionContext.class, Frame.class);
+
+    private static final MethodHandle EXECUTE;
+    private static final MethodHandle MODIFY_INSTR;
+    private static final MethodHandle MODIFY_NAMED;
+
+    static {
+        try {
+            EXECUTE = LOOKUP.findStatic(TieredCompiler.class, "execute",
+                EXECUTE_TYPE.insertParameterTypes(0, UnboundEntryAction.class));
+            MODIFY_INSTR = LOOKUP.findVirtual(ControlInstr.class, "modifyState", MODIFY_TYPE);
+            MODIFY_NAMED = LOOKUP.findVirtual(ControlInstr.StateModifier.class, "modifyState", MODIFY_TYPE);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final Handle CLASS_DATA_AT = new Handle(
+        Opcodes.H_INVOKESTATIC,
+        Type.getInternalName(MethodHandles.class),
+        "classDataAt",
+        Type.getMethodDescriptor(
+            Type.getType(Object.class), Type.getType(MethodHandles.Lookup.class), Type.getType(String.class),
+            Type.getType(Class.class), Type.INT_TYPE
+        ),
+        false
+    );
+
+    private static final String STATE = Type.getInternalName(FuncExecState.class);
+    private static final String FUSED = Type.getInternalName(FusedInstr.class);
+    private static final String COMPILER = Type.getInternalName(TieredCompiler.class);
+    private static final String METHOD_HANDLE = Type.getInternalName(MethodHandle.class);
+    private static final String STEP_DESC = Type.getMethodDescriptor(
+        Type.VOID_TYPE, Type.INT_TYPE, Type.getType(FuncExecState.class), Type.getType(ExecutionContext.class),
+        Type.getType(Frame.class)
+    );
+    private static final String EXECUTE_DESC = Type.getMethodDescriptor(
+        Type.VOID_TYPE, Type.INT_TYPE, Type.getType(Object.class), Type.getType(ExecutionContext.class),
+        Type.getType(Frame.class)
+    );
+    private static final String QUEUED_DESC = Type.getMethodDescriptor(
+        Type.INT_TYPE, Type.getType(ExecutionContext.class)
+    );
+    private static final String PROCEED_DESC = Type.getMethodDescriptor(
+        Type.BOOLEAN_TYPE, Type.getType(FuncExecState.class), Type.getType(ExecutionContext.class), Type.INT_TYPE,
+        Type.getType(List.class)
+    );
+
+    // Locals of the generated methods
+    private static final int INDEX = 1;
+    private static final int STATE_OR_SOURCE = 2;
+    private static final int CONTEXT = 3;
+    private static final int FRAME = 4;
+    private static final int QUEUED = 5;
+    private static final int CODE = 6;
+
+    private TieredCompiler() {
+    }
+
+    // Bound to each plain instruction; the receiver is constant, so the JIT can devirtualize the call
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static void execute(UnboundEntryAction action, Object source, ExecutionContext context, Frame frame) {
+        action.execute(source, context, frame);
+    }
+
+    /**
+     * Called by compiled bodies after every control instruction, to check whether the next instruction may run in the
+     * body as well: it must be a control instruction of the same function, and the interpreter must have been able to
+     * keep running inline (see {@link FuncExecTask#continuesInline}), in which case it is charged.
+     *
+     * @param queued The number of commands queued when the body was entered.
+     * @param code   The instructions of the compiled function.
+     */
+    static boolean proceed(FuncExecState<?> state, ExecutionContext<?> context, int queued, List<?> code) {
+        final var next = state.instr;
+        return state.code == code && next >= 0 && next < code.size() && code.get(next) instanceof ControlInstr<?> &&
+            FuncExecTask.continuesInline(state, context, queued);
+    }
+
+    /**
+     * Compiles a function.
+     *
+     * @return The compiled body, or {@code null} if the function can't be compiled (for instance, if it's too large
+     * for a single JVM method), in which case it stays interpreted.
+     */
+    @Nullable
+    public static <T> Body<T> compile(ResourceLocation id, List<UnboundEntryAction<T>> actions) {
+        final var handles = new ArrayList<MethodHandle>();
+
+        try {
+            final var bytes = generate(id, actions, handles);
+            final var lookup = LOOKUP.defineHiddenClassWithClassData(bytes, handles, true);
+
+            @SuppressWarnings("unchecked")
+            final var body = (Body<T>) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                .invoke();
+
+            ExecStats.tier2Compiles++;
+            return body;
+        } catch (Throwable e) {
+            ExecStats.tier2Failures++;
+            LOGGER.warn("Failed to compile function '{}', it will stay interpreted", id, e);
+            return null;
+        }
+    }
+
+    private static String className(ResourceLocation id) {
+        // Only used to make profiles readable, the JVM makes hidden class names unique
+        return Type.getInternalName(TieredCompiler.class) + "$" +
+            id.toString().replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    private static byte[] generate(ResourceLocation id, List<? extends UnboundEntryAction<?>> actions,
+                                   List<MethodHandle> handles) {
+        final var writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        final var name = className(id);
+
+        writer.visit(
+            Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, name, null,
+            Type.getInternalName(Object.class), new String[]{Type.getInternalName(Body.class)}
+        );
+
+        final var init = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        generateStep(writer.visitMethod(Opcodes.ACC_PUBLIC, "step", STEP_DESC, null, null), actions, handles);
+
+        final var execute = writer.visitMethod(Opcodes.ACC_PUBLIC, "execute", EXECUTE_DESC, null, null);
+        execute.visitCode();
+        final var end = new Label();
+        generateSwitch(execute, actions, false, end, (visitor, action) -> {
+            visitor.visitVarInsn(Opcodes.ALOAD, STATE_OR_SOURCE);
+            invokeExecute(visitor, action, handles);
+            visitor.visitInsn(Opcodes.RETURN);
+        });
+        execute.visitLabel(end);
+        execute.visitInsn(Opcodes.RETURN);
+        execute.visitMaxs(0, 0);
+        execute.visitEnd();
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private interface CaseGenerator {
+        void generate(MethodVisitor visitor, UnboundEntryAction<?> action);
+    }
+
+    /**
+     * Generates a {@code tableswitch} over the instruction index, with a case for either every control instruction
+     * or every plain one. Other indices jump to {@code end}, and so must every case.
+     */
+    private static void generateSwitch(MethodVisitor visitor, List<? extends UnboundEntryAction<?>> actions,
+                                       boolean control, Label end, CaseGenerator generator) {
+        final var labels = new Label[actions.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = (actions.get(i) instanceof ControlInstr<?>) == control ? new Label() : end;
+        }
+
+        visitor.visitVarInsn(Opcodes.ILOAD, INDEX);
+        if (labels.length != 0) {
+            visitor.visitTableSwitchInsn(0, labels.length - 1, end, labels);
+        }
+
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] != end) {
+                visitor.visitLabel(labels[i]);
+                generator.generate(visitor, actions.get(i));
+            }
+        }
+    }
+
+    /**
+     * Generates the loop of {@link Body#step}:
+     * <pre>
+     * queued = FusedInstr.queued(context); code = state.code;
+     * while (true) {
+     *     switch (index) { case control instruction: run it; break; default: return; }
+     *     if (!proceed(state, context, queued, code)) return;
+     *     index = state.instr;
+     * }
+     * </pre>
+     */
+    private static void generateStep(MethodVisitor visitor, List<? extends UnboundEntryAction<?>> actions,
+                                     List<MethodHandle> handles) {
+        final var loop = new Label();
+        final var next = new Label();
+        final var exit = new Label();
+
+        visitor.visitCode();
+        visitor.visitVarInsn(Opcodes.ALOAD, CONTEXT);
+        visitor.visitMethodInsn(Opcodes.INVOKESTATIC, FUSED, "queued", QUEUED_DESC, false);
+        visitor.visitVarInsn(Opcodes.ISTORE, QUEUED);
+        visitor.visitVarInsn(Opcodes.ALOAD, STATE_OR_SOURCE);
+        visitor.visitFieldInsn(Opcodes.GETFIELD, STATE, "code", Type.getDescriptor(List.class));
+        visitor.visitVarInsn(Opcodes.ASTORE, CODE);
+
+        visitor.visitLabel(loop);
+        generateSwitch(visitor, actions, true, exit, (caseVisitor, action) -> {
+            // The loop runs the rest of a fused trace by itself, with the same checks between parts
+            final var instr = action instanceof FusedInstr<?> fused ? fused.parts()[0] : (ControlInstr<?>) action;
+            generateControl(caseVisitor, instr, handles);
+            caseVisitor.visitJumpInsn(Opcodes.GOTO, next);
+        });
+
+        visitor.visitLabel(next);
+        visitor.visitVarInsn(Opcodes.ALOAD, STATE_OR_SOURCE);
+        visitor.visitVarInsn(Opcodes.ALOAD, CONTEXT);
+        visitor.visitVarInsn(Opcodes.ILOAD, QUEUED);
+        visitor.visitVarInsn(Opcodes.ALOAD, CODE);
+        visitor.visitMethodInsn(Opcodes.INVOKESTATIC, COMPILER, "proceed", PROCEED_DESC, false);
+        visitor.visitJumpInsn(Opcodes.IFEQ, exit);
+        visitor.visitVarInsn(Opcodes.ALOAD, STATE_OR_SOURCE);
+        visitor.visitFieldInsn(Opcodes.GETFIELD, STATE, "instr", "I");
+        visitor.visitVarInsn(Opcodes.ISTORE, INDEX);
+        visitor.visitJumpInsn(Opcodes.GOTO, loop);
+
+        visitor.visitLabel(exit);
+        visitor.visitInsn(Opcodes.RETURN);
+        visitor.visitMaxs(0, 0);
+        visitor.visitEnd();
+    }
+
+    private static void loadHandle(MethodVisitor visitor, MethodHandle handle, List<MethodHandle> handles) {
+        final var index = handles.size();
+        handles.add(handle);
+        // classDataAt only accepts "_" as the name, constants are told apart by their index
+        visitor.visitLdcInsn(new ConstantDynamic("_", Type.getDescriptor(MethodHandle.class), CLASS_DATA_AT, index));
+    }
+
+    /**
+     * Executes {@code action}, with the source already on the operand stack.
+     */
+    private static void invokeExecute(MethodVisitor visitor, UnboundEntryAction<?> action,
+                                      List<MethodHandle> handles) {
+        // The handle goes below the source
+        loadHandle(visitor, EXECUTE.bindTo(action), handles);
+        visitor.visitInsn(Opcodes.SWAP);
+        visitor.visitVarInsn(Opcodes.ALOAD, CONTEXT);
+        visitor.visitVarInsn(Opcodes.ALOAD, FRAME);
+        visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact",
+            EXECUTE_TYPE.toMethodDescriptorString(), false);
+    }
+
+    /**
+     * Same as the interpreter: {@code execute}, {@code instr++}, {@code modifyState}.
+     */
+    private static void generateControl(MethodVisitor visitor, ControlInstr<?> instr, List<MethodHandle> handles) {
+        // Named instructions don't execute anything, and their modifier can be called directly
+        if (!(instr instanceof ControlInstr.Named<?>)) {
+            visitor.visitVarInsn(Opcodes.ALOAD, STATE_OR_SOURCE);
+            visitor.visitFieldInsn(Opcodes.GETFIELD, STATE, "source", Type.getDescriptor(Object.class));
+            invokeExecute(visitor, instr, handles);
+        }
+
+        visitor.visitVarInsn(Opcodes.ALOAD, STATE_OR_SOURCE);
+        visitor.visitInsn(Opcodes.DUP);
+        visitor.visitFieldInsn(Opcodes.GETFIELD, STATE, "instr", "I");
+        visitor.visitInsn(Opcodes.ICONST_1);
+        visitor.visitInsn(Opcodes.IADD);
+        visitor.visitFieldInsn(Opcodes.PUTFIELD, STATE, "instr", "I");
+
+        final var modify = instr instanceof ControlInstr.Named<?> named ?
+            MODIFY_NAMED.bindTo(named.modifier()) : MODIFY_INSTR.bindTo(instr);
+        loadHandle(visitor, modify, handles);
+        visitor.visitVarInsn(Opcodes.ALOAD, STATE_OR_SOURCE);
+        visitor.visitVarInsn(Opcodes.ALOAD, CONTEXT);
+        visitor.visitVarInsn(Opcodes.ALOAD, FRAME);
+        visitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact",
+            MODIFY_TYPE.toMethodDescriptorString(), false);
+    }
+}
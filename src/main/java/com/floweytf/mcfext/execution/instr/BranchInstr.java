@@ -1,6 +1,7 @@
 package com.floweytf.mcfext.execution.instr;
 
 import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
 import net.minecraft.commands.execution.ExecutionContext;
 import net.minecraft.commands.execution.Frame;
 
@@ -28,6 +29,20 @@ public record BranchInstr<T>(int target) implements ControlInstr<T> {
         state.instr = target;
     }
 
+    @Override
+    public void verify(StackVerifier.Context context) {
+        if (target == Integer.MAX_VALUE) {
+            context.exit();
+        } else {
+            context.jump(target);
+        }
+    }
+
+    @Override
+    public int successor(int index) {
+        return target == Integer.MAX_VALUE ? -1 : target;
+    }
+
     @Override
     public String toString() {
         return "builtin::br[" + target + "]";
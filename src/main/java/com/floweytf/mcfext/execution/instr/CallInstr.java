@@ -1,6 +1,7 @@
 package com.floweytf.mcfext.execution.instr;
 
 import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
 import net.minecraft.commands.execution.ExecutionContext;
 import net.minecraft.commands.execution.Frame;
 
@@ -19,10 +20,21 @@ import net.minecraft.commands.execution.Frame;
 public record CallInstr<T>(int target) implements ControlInstr<T> {
     @Override
     public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
-        state.stack.pushInstrAddress(state.instr);
+        state.stack().pushInstrAddress(state.instr);
         state.instr = target;
     }
 
+    @Override
+    public void verify(StackVerifier.Context context) {
+        context.call(target);
+        context.exit();
+    }
+
+    @Override
+    public int successor(int index) {
+        return target;
+    }
+
     @Override
     public String toString() {
         return "builtin::call[" + target + "]";
@@ -1,6 +1,7 @@
 package com.floweytf.mcfext.execution.instr;
 
 import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
 import net.minecraft.commands.execution.ExecutionContext;
 import net.minecraft.commands.execution.Frame;
 import net.minecraft.commands.execution.UnboundEntryAction;
@@ -17,6 +18,10 @@ public interface ControlInstr<T> extends UnboundEntryAction<T> {
         void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame);
     }
 
+    interface StackEffect {
+        void verify(StackVerifier.Context context);
+    }
+
     @Override
     default void execute(@NotNull T source, @NotNull ExecutionContext<T> context,
                          @NotNull Frame frame) {
@@ -31,17 +36,52 @@ public interface ControlInstr<T> extends UnboundEntryAction<T> {
      */
     void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame);
 
+    /**
+     * Describe the effect of this instruction on the stack and on control flow, see {@link StackVerifier}. By
+     * default, instructions can't be verified, and functions containing them run with a checked stack.
+     *
+     * @param context The stack as seen by this instruction.
+     */
+    default void verify(StackVerifier.Context context) {
+        context.unverifiable();
+    }
+
+    /**
+     * The instruction this one usually continues at, used to pick instructions to fuse (see {@link FusedInstr}). This
+     * is only a hint: the fused instruction checks where execution actually continues.
+     *
+     * @param index The index of this instruction.
+     * @return The index of the likely next instruction, or {@code -1} if there is no single likely successor.
+     */
+    default int successor(int index) {
+        return index + 1;
+    }
+
     static <T> ControlInstr<T> named(String name, StateModifier<T> modifier) {
-        return new ControlInstr<>() {
-            @Override
-            public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
-                modifier.modifyState(state, context, frame);
-            }
-
-            @Override
-            public String toString() {
-                return name;
-            }
-        };
+        return named(name, StackVerifier.Context::unverifiable, modifier);
+    }
+
+    static <T> ControlInstr<T> named(String name, StackEffect effect, StateModifier<T> modifier) {
+        return new Named<>(name, effect, modifier);
+    }
+
+    /**
+     * A control instruction defined by its state modification alone, see {@link #named}.
+     */
+    record Named<T>(String name, StackEffect effect, StateModifier<T> modifier) implements ControlInstr<T> {
+        @Override
+        public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
+            modifier.modifyState(state, context, frame);
+        }
+
+        @Override
+        public void verify(StackVerifier.Context context) {
+            effect.verify(context);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.floweytf.mcfext.execution.instr;
+
+import com.floweytf.mcfext.execution.ExecStats;
+import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.FuncExecTask;
+import com.floweytf.mcfext.execution.StackVerifier;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.Frame;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * A "superinstruction": a trace of control instructions that usually run back-to-back, executed with a single
+ * dispatch. Fused instructions are created at link time (see {@link com.floweytf.mcfext.codegen.InstrFusion}), and
+ * replace the first instruction of the trace. The other instructions stay where they are, so code jumping into the
+ * middle of the trace still works.
+ * <p>
+ * After each part, the next one is only run if execution actually continues at its address, and if the engine would
+ * have kept running inline (see {@link FuncExecTask#continuesInline}), which also charges it like the engine would have:
+ * against the control budget, the time slice of time-sliced functions, and the task's inline limit. Otherwise, the
+ * fused instruction stops, and the engine picks up from wherever the last part left off.
+ *
+ * @param parts     The instructions in the trace.
+ * @param addresses The address of each instruction in the trace.
+ */
+public record FusedInstr<T>(ControlInstr<T>[] parts, int[] addresses) implements ControlInstr<T> {
+    @Override
+    public void execute(@NotNull T source, @NotNull ExecutionContext<T> context, @NotNull Frame frame) {
+        parts[0].execute(source, context, frame);
+    }
+
+    /**
+     * @return The number of commands queued in {@code context}, to later pass to {@link #continues}.
+     */
+    public static int queued(ExecutionContext<?> context) {
+        return context.newTopCommands.size();
+    }
+
+    /**
+     * Checks whether a trace may continue with the part at {@code address}, and charges it if so.
+     *
+     * @param queued The number of commands queued when the trace started, see {@link #queued}.
+     */
+    public static boolean continues(FuncExecState<?> state, ExecutionContext<?> context, int queued, int address) {
+        if (state.instr != address || !FuncExecTask.continuesInline(state, context, queued)) {
+            return false;
+        }
+
+        ExecStats.fusedDispatches++;
+        return true;
+    }
+
+    @Override
+    public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
+        final var queued = queued(context);
+        parts[0].modifyState(state, context, frame);
+
+        for (int i = 1; i < parts.length && continues(state, context, queued, addresses[i]); i++) {
+            final var part = parts[i];
+            part.execute(state.source, context, frame);
+            state.instr++;
+            part.modifyState(state, context, frame);
+        }
+    }
+
+    @Override
+    public void verify(StackVerifier.Context context) {
+        // Every part after the first is still present at its own address
+        parts[0].verify(context);
+    }
+
+    @Override
+    public int successor(int index) {
+        return parts[0].successor(index);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.stream(parts).map(Object::toString).collect(Collectors.joining(" + ", "fused[", "]"));
+    }
+}
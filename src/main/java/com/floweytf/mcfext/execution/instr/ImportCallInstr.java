@@ -0,0 +1,101 @@
+package com.floweytf.mcfext.execution.instr;
+
+import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.Frame;
+import net.minecraft.commands.execution.UnboundEntryAction;
+import net.minecraft.resources.ResourceLocation;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Call to a subroutine imported from another function (see {@code import}). The subroutine is looked up in the
+ * imported functions once every function is loaded, see {@link com.floweytf.mcfext.codegen.CallLinker}.
+ * <p>
+ * The call works exactly like a {@link SubroutineCallInstr}, on the caller's stack and state, except that the
+ * subroutine runs from the instructions of the function defining it (see {@link FuncExecState#farCall}). No frame,
+ * task or state is created for it. An unresolved call does nothing.
+ * <h3>Pseudocode (assembly)</h3>
+ * <pre>
+ * {@code
+ * PUSH[InstrAddress](%ip)
+ * PUSH[Source](%source)
+ * %code = library
+ * PUSH_BP()
+ * %ip = target
+ * }
+ * </pre>
+ */
+public final class ImportCallInstr<T> implements ControlInstr<T> {
+    private final List<ResourceLocation> imports;
+    private final String name;
+    @Nullable
+    private List<UnboundEntryAction<T>> code;
+    private int target;
+
+    /**
+     * @param imports The functions to look the subroutine up in, in order.
+     * @param name    The name of the subroutine.
+     */
+    public ImportCallInstr(List<ResourceLocation> imports, String name) {
+        this.imports = imports;
+        this.name = name;
+    }
+
+    public List<ResourceLocation> imports() {
+        return imports;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return The instructions of the function defining the subroutine, or {@code null} if the call is unresolved.
+     */
+    @Nullable
+    public List<UnboundEntryAction<T>> code() {
+        return code;
+    }
+
+    /**
+     * Resolves the call.
+     *
+     * @param code   The instructions of the function defining the subroutine.
+     * @param target The entry of the subroutine in {@code code}.
+     */
+    public void link(List<UnboundEntryAction<T>> code, int target) {
+        this.code = code;
+        this.target = target;
+    }
+
+    @Override
+    public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
+        if (code == null) {
+            return;
+        }
+
+        state.stack().pushInstrAddress(state.instr);
+        state.pushSource();
+        state.farCall(code);
+        state.basePointers().push(state.stack().size());
+        state.instr = target;
+    }
+
+    @Override
+    public void verify(StackVerifier.Context context) {
+        // The subroutine is verified along with the function defining it, and returns with the stack as it found it
+    }
+
+    @Override
+    public int successor(int index) {
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "subroutine::import_call[" + name + "]";
+    }
+}
@@ -1,13 +1,19 @@
 package com.floweytf.mcfext.execution.instr;
 
 import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
 import net.minecraft.commands.execution.ExecutionContext;
 import net.minecraft.commands.execution.Frame;
 
 public record PushInstrAddrInstr<T>(int target) implements ControlInstr<T> {
     @Override
     public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
-        state.stack.pushInstrAddress(target);
+        state.stack().pushInstrAddress(target);
+    }
+
+    @Override
+    public void verify(StackVerifier.Context context) {
+        context.pushAddress(target);
     }
 
     @Override
@@ -1,6 +1,7 @@
 package com.floweytf.mcfext.execution.instr;
 
 import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
 import net.minecraft.commands.execution.ExecutionContext;
 import net.minecraft.commands.execution.Frame;
 
@@ -27,7 +28,17 @@ public class RetInstr<T> implements ControlInstr<T> {
 
     @Override
     public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
-        state.instr = state.stack.popInstrAddress();
+        state.instr = state.stack().popInstrAddress();
+    }
+
+    @Override
+    public void verify(StackVerifier.Context context) {
+        context.ret();
+    }
+
+    @Override
+    public int successor(int index) {
+        return -1;
     }
 
     @Override
@@ -1,18 +1,30 @@
 package com.floweytf.mcfext.execution.instr;
 
 import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
 import net.minecraft.commands.execution.ExecutionContext;
 import net.minecraft.commands.execution.Frame;
 
 public record SubroutineCallInstr<T>(int target) implements ControlInstr<T> {
     @Override
     public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
-        state.stack.pushInstrAddress(state.instr);
+        state.stack().pushInstrAddress(state.instr);
         state.pushSource();
-        state.basePointerStack.push(state.stack.size());
+        state.basePointers().push(state.stack().size());
         state.instr = target;
     }
 
+    @Override
+    public void verify(StackVerifier.Context context) {
+        context.subroutineCall(target);
+        context.exit();
+    }
+
+    @Override
+    public int successor(int index) {
+        return target;
+    }
+
     @Override
     public String toString() {
         return "subroutine::call[" + target + "]";
@@ -1,6 +1,7 @@
 package com.floweytf.mcfext.execution.instr;
 
 import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
 import net.minecraft.commands.execution.ExecutionContext;
 import net.minecraft.commands.execution.Frame;
 
@@ -18,17 +19,20 @@ public class SubroutineRetInstr<T> implements ControlInstr<T> {
 
     @Override
     public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
-        final var target = state.basePointerStack.popInt();
-        if (state.stack.size() < target) {
-            throw new IllegalStateException("Stack was popped too much");
-        }
+        state.stack().truncate(state.basePointers().popInt());
+        state.popSource();
+        state.instr = state.stack().popInstrAddress();
+        state.subroutineReturned();
+    }
 
-        while (state.stack.size() > target) {
-            state.stack.discard();
-        }
+    @Override
+    public void verify(StackVerifier.Context context) {
+        context.subroutineRet();
+    }
 
-        state.popSource();
-        state.instr = state.stack.popInstrAddress();
+    @Override
+    public int successor(int index) {
+        return -1;
     }
 
     @Override
@@ -0,0 +1,43 @@
+package com.floweytf.mcfext.execution.instr;
+
+import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.Frame;
+
+/**
+ * Subroutine call in tail position, i.e. immediately followed by a subroutine return. Rather than pushing a new frame,
+ * the frame of the current subroutine is reused: its locals are dropped, but the saved source, return address and
+ * base pointer are kept, so the callee's return goes straight back to our caller.
+ * <h3>Pseudocode (assembly)</h3>
+ * <pre>
+ * {@code
+ * TRUNCATE(PEEK_BP())
+ * %ip = target
+ * }
+ * </pre>
+ *
+ * @param target The instruction to jump to.
+ */
+public record SubroutineTailCallInstr<T>(int target) implements ControlInstr<T> {
+    @Override
+    public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
+        state.stack().truncate(state.basePointers().topInt());
+        state.instr = target;
+    }
+
+    @Override
+    public void verify(StackVerifier.Context context) {
+        context.subroutineTailCall(target);
+    }
+
+    @Override
+    public int successor(int index) {
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return "subroutine::tail_call[" + target + "]";
+    }
+}
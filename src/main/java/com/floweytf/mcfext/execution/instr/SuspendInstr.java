@@ -0,0 +1,35 @@
+package com.floweytf.mcfext.execution.instr;
+
+import com.floweytf.mcfext.execution.FuncExecScheduler;
+import com.floweytf.mcfext.execution.FuncExecState;
+import com.floweytf.mcfext.execution.StackVerifier;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.Frame;
+
+/**
+ * Suspends the function after this instruction, and resumes it (with the same state) after {@code ticks} ticks.
+ *
+ * @param ticks The number of ticks to suspend for, at least 1.
+ * @see FuncExecScheduler
+ */
+public record SuspendInstr<T>(int ticks) implements ControlInstr<T> {
+    @Override
+    public void modifyState(FuncExecState<T> state, ExecutionContext<T> context, Frame frame) {
+        state.suspendTicks = ticks;
+    }
+
+    @Override
+    public void verify(StackVerifier.Context context) {
+        // no effect on the stack
+    }
+
+    @Override
+    public int successor(int index) {
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "suspend::sleep[" + ticks + "]";
+    }
+}
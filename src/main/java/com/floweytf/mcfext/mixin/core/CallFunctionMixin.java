@@ -1,6 +1,10 @@
 package com.floweytf.mcfext.mixin.core;
 
+import com.floweytf.mcfext.execution.CompiledActionList;
+import com.floweytf.mcfext.execution.ExecConfig;
+import com.floweytf.mcfext.execution.ExecStats;
 import com.floweytf.mcfext.execution.FuncExecTask;
+import com.floweytf.mcfext.execution.FuncExecVM;
 import com.llamalad7.mixinextras.sugar.Local;
 import net.minecraft.commands.ExecutionCommandSource;
 import net.minecraft.commands.execution.ExecutionContext;
@@ -8,7 +12,10 @@ import net.minecraft.commands.execution.Frame;
 import net.minecraft.commands.execution.UnboundEntryAction;
 import net.minecraft.commands.execution.tasks.CallFunction;
 import net.minecraft.commands.execution.tasks.ContinuationTask;
+import net.minecraft.commands.functions.InstantiatedFunction;
+import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Redirect;
 
@@ -16,6 +23,10 @@ import java.util.List;
 
 @Mixin(CallFunction.class)
 public class CallFunctionMixin<T extends ExecutionCommandSource<T>> {
+    @Shadow
+    @Final
+    private InstantiatedFunction<T> function;
+
     @Redirect(
         method = "execute(Lnet/minecraft/commands/ExecutionCommandSource;" +
             "Lnet/minecraft/commands/execution/ExecutionContext;Lnet/minecraft/commands/execution/Frame;)V",
@@ -33,6 +44,18 @@ public class CallFunctionMixin<T extends ExecutionCommandSource<T>> {
         ContinuationTask.TaskProvider<T, UnboundEntryAction<T>> wrapper,
         @Local(argsOnly = true, ordinal = 0) T context
     ) {
-        FuncExecTask.schedule(exec, frame, actions, context);
+        // Functions without control flow don't need any exec state, vanilla's continuation is as lean as it gets
+        if (ExecConfig.ENGINE == ExecConfig.Engine.TASK && !CompiledActionList.needsEngine(actions)) {
+            ExecStats.plainCalls++;
+            ContinuationTask.schedule(exec, frame, actions, wrapper);
+            return;
+        }
+
+        ExecStats.engineCalls++;
+
+        switch (ExecConfig.ENGINE) {
+        case TASK -> FuncExecTask.schedule(exec, frame, function.id(), actions, context);
+        case VM -> FuncExecVM.schedule(exec, frame, function.id(), actions, context);
+        }
     }
 }
\ No newline at end of file
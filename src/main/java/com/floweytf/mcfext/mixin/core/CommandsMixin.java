@@ -1,15 +1,24 @@
 package com.floweytf.mcfext.mixin.core;
 
+import com.floweytf.mcfext.command.MCFExtCommand;
 import com.floweytf.mcfext.parse.parser.Parser;
+import com.mojang.brigadier.CommandDispatcher;
 import net.minecraft.commands.CommandBuildContext;
+import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
+import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 @Mixin(Commands.class)
 public class CommandsMixin {
+    @Shadow
+    @Final
+    private CommandDispatcher<CommandSourceStack> dispatcher;
+
     @Inject(
         method = "<init>(Lnet/minecraft/commands/Commands$CommandSelection;" +
             "Lnet/minecraft/commands/CommandBuildContext;)V",
@@ -18,5 +27,6 @@ public class CommandsMixin {
     private void monumenta$registerCommands(Commands.CommandSelection environment, CommandBuildContext access,
                                             CallbackInfo ci) {
         Parser.init(access);
+        MCFExtCommand.register(dispatcher);
     }
 }
@@ -0,0 +1,56 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.execution.SelectorCache;
+import com.floweytf.mcfext.execution.TagIndex;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.entity.Entity;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(Entity.class)
+public class EntityMixin implements TagIndex.IndexedEntity {
+    @Unique
+    private boolean monumenta$indexed = false;
+
+    @Override
+    public boolean monumenta$isIndexed() {
+        return monumenta$indexed;
+    }
+
+    @Override
+    public void monumenta$setIndexed(boolean indexed) {
+        monumenta$indexed = indexed;
+    }
+
+    @Inject(method = "addTag", at = @At("RETURN"))
+    private void monumenta$onTagAdded(String tag, CallbackInfoReturnable<Boolean> cir) {
+        if (cir.getReturnValue()) {
+            SelectorCache.invalidateTags();
+            TagIndex.onTagAdded((Entity) (Object) this, tag);
+        }
+    }
+
+    @Inject(method = "removeTag", at = @At("RETURN"))
+    private void monumenta$onTagRemoved(String tag, CallbackInfoReturnable<Boolean> cir) {
+        if (cir.getReturnValue()) {
+            SelectorCache.invalidateTags();
+            TagIndex.onTagRemoved((Entity) (Object) this, tag);
+        }
+    }
+
+    // Loading NBT (such as with /data) replaces the tags directly
+    @Inject(method = "load", at = @At("HEAD"))
+    private void monumenta$beforeLoad(CompoundTag tag, CallbackInfo ci) {
+        TagIndex.beforeLoad((Entity) (Object) this);
+    }
+
+    @Inject(method = "load", at = @At("TAIL"))
+    private void monumenta$afterLoad(CompoundTag tag, CallbackInfo ci) {
+        SelectorCache.invalidateTags();
+        TagIndex.afterLoad((Entity) (Object) this);
+    }
+}
@@ -0,0 +1,65 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.execution.SelectorCache;
+import com.floweytf.mcfext.execution.SpatialQuery;
+import com.floweytf.mcfext.execution.TagIndex;
+import net.minecraft.commands.arguments.selector.EntitySelector;
+import org.jetbrains.annotations.Nullable;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+
+@Mixin(EntitySelector.class)
+public class EntitySelectorMixin implements SelectorCache.Holder, TagIndex.IndexedSelector,
+    SpatialQuery.SpatialSelector {
+    @Unique
+    @Nullable
+    private String monumenta$cacheKey = null;
+
+    @Unique
+    private int monumenta$cacheDeps = 0;
+
+    @Unique
+    @Nullable
+    private String monumenta$indexTag = null;
+
+    @Unique
+    private boolean monumenta$spatial = false;
+
+    @Override
+    @Nullable
+    public String monumenta$getCacheKey() {
+        return monumenta$cacheKey;
+    }
+
+    @Override
+    public int monumenta$getCacheDeps() {
+        return monumenta$cacheDeps;
+    }
+
+    @Override
+    public void monumenta$setCacheInfo(@Nullable String key, int deps) {
+        monumenta$cacheKey = key;
+        monumenta$cacheDeps = deps;
+    }
+
+    @Override
+    @Nullable
+    public String monumenta$getIndexTag() {
+        return monumenta$indexTag;
+    }
+
+    @Override
+    public void monumenta$setIndexTag(@Nullable String tag) {
+        monumenta$indexTag = tag;
+    }
+
+    @Override
+    public boolean monumenta$isSpatial() {
+        return monumenta$spatial;
+    }
+
+    @Override
+    public void monumenta$setSpatial(boolean spatial) {
+        monumenta$spatial = spatial;
+    }
+}
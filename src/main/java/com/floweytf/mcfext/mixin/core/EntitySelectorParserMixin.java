@@ -0,0 +1,163 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.execution.SelectorCache;
+import com.floweytf.mcfext.execution.SpatialQuery;
+import com.floweytf.mcfext.execution.TagIndex;
+import com.mojang.brigadier.StringReader;
+import net.minecraft.commands.arguments.selector.EntitySelector;
+import net.minecraft.commands.arguments.selector.EntitySelectorParser;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.Nullable;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.ModifyArg;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+@Mixin(EntitySelectorParser.class)
+public class EntitySelectorParserMixin {
+    @Unique
+    private static final Set<String> monumenta$CACHEABLE_OPTIONS = Set.of("type", "tag", "scores", "limit", "sort");
+
+    @Unique
+    private static final Set<String> monumenta$UNINDEXABLE_OPTIONS = Set.of(
+        "x", "y", "z", "dx", "dy", "dz", "distance", "sort", "limit"
+    );
+
+    @Unique
+    private static final Set<String> monumenta$SPATIAL_OPTIONS = Set.of("dx", "dy", "dz", "distance");
+
+    @Unique
+    private static final String monumenta$MODIFIER_HANDLE =
+        "Lnet/minecraft/commands/arguments/selector/options/EntitySelectorOptions$Modifier;handle" +
+            "(Lnet/minecraft/commands/arguments/selector/EntitySelectorParser;)V";
+
+    @Shadow
+    @Final
+    private StringReader reader;
+
+    @Shadow
+    private int startPosition;
+
+    @Shadow
+    private boolean currentEntity;
+
+    @Shadow
+    @Nullable
+    private String playerName;
+
+    @Shadow
+    @Nullable
+    private UUID entityUUID;
+
+    @Shadow
+    private BiConsumer<Vec3, List<? extends Entity>> order;
+
+    @Shadow
+    private boolean includesEntities;
+
+    @Unique
+    private final Set<String> monumenta$options = new HashSet<>();
+
+    @Unique
+    @Nullable
+    private String monumenta$lastOption = null;
+
+    @Unique
+    private int monumenta$valueStart = 0;
+
+    @Unique
+    @Nullable
+    private String monumenta$indexTag = null;
+
+    @ModifyArg(
+        method = "parseOptions",
+        at = @At(
+            value = "INVOKE",
+            target = "Lnet/minecraft/commands/arguments/selector/options/EntitySelectorOptions;get" +
+                "(Lnet/minecraft/commands/arguments/selector/EntitySelectorParser;Ljava/lang/String;I)" +
+                "Lnet/minecraft/commands/arguments/selector/options/EntitySelectorOptions$Modifier;"
+        ),
+        index = 1
+    )
+    private String monumenta$recordOption(String name) {
+        monumenta$options.add(name);
+        monumenta$lastOption = name;
+        return name;
+    }
+
+    @Inject(method = "parseOptions", at = @At(value = "INVOKE", target = monumenta$MODIFIER_HANDLE))
+    private void monumenta$beforeOptionValue(CallbackInfo ci) {
+        monumenta$valueStart = reader.getCursor();
+    }
+
+    @Inject(
+        method = "parseOptions",
+        at = @At(value = "INVOKE", target = monumenta$MODIFIER_HANDLE, shift = At.Shift.AFTER)
+    )
+    private void monumenta$afterOptionValue(CallbackInfo ci) {
+        // The first tag an entity must have (tag=!foo and tag= don't narrow anything down)
+        if ("tag".equals(monumenta$lastOption) && monumenta$indexTag == null) {
+            final var value = reader.getString().substring(monumenta$valueStart, reader.getCursor());
+
+            if (!value.isEmpty() && !value.startsWith("!")) {
+                monumenta$indexTag = value;
+            }
+        }
+    }
+
+    @Inject(method = "getSelector", at = @At("RETURN"))
+    private void monumenta$setIndexTag(CallbackInfoReturnable<EntitySelector> cir) {
+        // @e selectors that don't depend on positions or on the order of entities, see TagIndex
+        if (currentEntity || playerName != null || entityUUID != null || !includesEntities ||
+            order != EntitySelectorParser.ORDER_ARBITRARY ||
+            monumenta$options.stream().anyMatch(monumenta$UNINDEXABLE_OPTIONS::contains)) {
+            return;
+        }
+
+        ((TagIndex.IndexedSelector) cir.getReturnValue()).monumenta$setIndexTag(monumenta$indexTag);
+    }
+
+    @Inject(method = "getSelector", at = @At("RETURN"))
+    private void monumenta$setSpatial(CallbackInfoReturnable<EntitySelector> cir) {
+        // Entity selectors bounded by distance or volume, see SpatialQuery
+        if (currentEntity || playerName != null || entityUUID != null || !includesEntities ||
+            monumenta$options.stream().noneMatch(monumenta$SPATIAL_OPTIONS::contains)) {
+            return;
+        }
+
+        ((SpatialQuery.SpatialSelector) cir.getReturnValue()).monumenta$setSpatial(true);
+    }
+
+    @Inject(method = "getSelector", at = @At("RETURN"))
+    private void monumenta$setCacheInfo(CallbackInfoReturnable<EntitySelector> cir) {
+        // Only selectors that don't depend on the source at all, see SelectorCache
+        if (currentEntity || playerName != null || entityUUID != null ||
+            order != EntitySelectorParser.ORDER_ARBITRARY ||
+            !monumenta$CACHEABLE_OPTIONS.containsAll(monumenta$options)) {
+            return;
+        }
+
+        int deps = 0;
+        if (monumenta$options.contains("tag")) {
+            deps |= SelectorCache.DEPENDS_TAGS;
+        }
+        if (monumenta$options.contains("scores")) {
+            deps |= SelectorCache.DEPENDS_SCORES;
+        }
+
+        final var key = reader.getString().substring(startPosition, reader.getCursor());
+        ((SelectorCache.Holder) cir.getReturnValue()).monumenta$setCacheInfo(key, deps);
+    }
+}
@@ -0,0 +1,25 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.execution.ExecBudget;
+import net.minecraft.commands.execution.ExecutionContext;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(ExecutionContext.class)
+public class ExecutionContextMixin implements ExecBudget.Holder {
+    @Unique
+    private final ExecBudget monumenta$budget = new ExecBudget();
+
+    @Override
+    public ExecBudget monumenta$getBudget() {
+        return monumenta$budget;
+    }
+
+    @Inject(method = "close", at = @At("HEAD"))
+    private void monumenta$recordStats(CallbackInfo ci) {
+        monumenta$budget.record((ExecutionContext<?>) (Object) this);
+    }
+}
@@ -0,0 +1,23 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.execution.SelectorCache;
+import net.minecraft.world.entity.LivingEntity;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(LivingEntity.class)
+public abstract class LivingEntityMixin {
+    @Shadow
+    public abstract float getHealth();
+
+    // @e only matches living entities, so a death changes its results
+    @Inject(method = "setHealth", at = @At("TAIL"))
+    private void monumenta$invalidateSelectorCache(float health, CallbackInfo ci) {
+        if (getHealth() <= 0) {
+            SelectorCache.invalidateEntities();
+        }
+    }
+}
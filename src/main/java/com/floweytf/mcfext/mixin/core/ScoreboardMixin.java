@@ -0,0 +1,19 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.execution.SelectorCache;
+import net.minecraft.world.scores.Scoreboard;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(Scoreboard.class)
+public class ScoreboardMixin {
+    @Inject(
+        method = {"onScoreChanged", "onPlayerRemoved", "onPlayerScoreRemoved", "onObjectiveRemoved"},
+        at = @At("HEAD")
+    )
+    private void monumenta$invalidateSelectorCache(CallbackInfo ci) {
+        SelectorCache.invalidateScores();
+    }
+}
@@ -1,5 +1,7 @@
 package com.floweytf.mcfext.mixin.core;
 
+import com.floweytf.mcfext.codegen.InlineReport;
+import com.floweytf.mcfext.codegen.InstrFusion;
 import com.floweytf.mcfext.parse.parser.Parser;
 import com.google.common.collect.ImmutableMap;
 import com.llamalad7.mixinextras.injector.wrapoperation.Operation;
@@ -20,6 +22,7 @@ import org.spongepowered.asm.mixin.injection.Redirect;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Mixin(ServerFunctionLibrary.class)
 public class ServerFunctionLibraryMixin {
@@ -27,6 +30,12 @@ public class ServerFunctionLibraryMixin {
     @Final
     private static Logger LOGGER;
 
+    @Inject(method = "reload", at = @At("HEAD"))
+    private void monumenta$clearCensus(CallbackInfoReturnable<CompletableFuture<Void>> ci) {
+        InstrFusion.clearCensus();
+        InlineReport.clear();
+    }
+
     @SuppressWarnings("unchecked")
     @Redirect(
         method = "lambda$reload$2",
@@ -0,0 +1,41 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.codegen.CallLinker;
+import com.floweytf.mcfext.execution.FuncExecScheduler;
+import com.floweytf.mcfext.execution.PredicateMemo;
+import com.floweytf.mcfext.execution.SelectorCache;
+import net.minecraft.server.ServerFunctionLibrary;
+import net.minecraft.server.ServerFunctionManager;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(ServerFunctionManager.class)
+public class ServerFunctionManagerMixin implements FuncExecScheduler.Holder {
+    @Unique
+    private final FuncExecScheduler monumenta$scheduler = new FuncExecScheduler();
+
+    @Override
+    public FuncExecScheduler monumenta$getScheduler() {
+        return monumenta$scheduler;
+    }
+
+    @Inject(method = "tick", at = @At("HEAD"))
+    private void monumenta$tickScheduler(CallbackInfo ci) {
+        SelectorCache.tick();
+        PredicateMemo.tick();
+        monumenta$scheduler.tick();
+    }
+
+    @Inject(method = "postReload", at = @At("HEAD"))
+    private void monumenta$abortSuspended(ServerFunctionLibrary library, CallbackInfo ci) {
+        monumenta$scheduler.abortAll();
+    }
+
+    @Inject(method = "postReload", at = @At("HEAD"))
+    private void monumenta$linkCalls(ServerFunctionLibrary library, CallbackInfo ci) {
+        CallLinker.link(library);
+    }
+}
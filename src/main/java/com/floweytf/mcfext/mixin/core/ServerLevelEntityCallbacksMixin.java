@@ -0,0 +1,25 @@
+package com.floweytf.mcfext.mixin.core;
+
+import com.floweytf.mcfext.execution.SelectorCache;
+import com.floweytf.mcfext.execution.TagIndex;
+import net.minecraft.world.entity.Entity;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+// Tracked entities are the ones visible to selectors
+@Mixin(targets = "net.minecraft.server.level.ServerLevel$EntityCallbacks")
+public class ServerLevelEntityCallbacksMixin {
+    @Inject(method = "onTrackingStart", at = @At("HEAD"))
+    private void monumenta$onTrackingStart(Entity entity, CallbackInfo ci) {
+        SelectorCache.invalidateEntities();
+        TagIndex.onTrackingStart(entity);
+    }
+
+    @Inject(method = "onTrackingEnd", at = @At("HEAD"))
+    private void monumenta$onTrackingEnd(Entity entity, CallbackInfo ci) {
+        SelectorCache.invalidateEntities();
+        TagIndex.onTrackingEnd(entity);
+    }
+}
@@ -1,12 +1,15 @@
 package com.floweytf.mcfext.parse;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
+import com.floweytf.mcfext.execution.SourceSink;
 import com.floweytf.mcfext.execution.instr.ControlInstr;
 import com.mojang.brigadier.CommandDispatcher;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntObjectPair;
 import net.minecraft.commands.ExecutionCommandSource;
 import net.minecraft.commands.FunctionInstantiationException;
+import net.minecraft.commands.execution.ExecutionContext;
+import net.minecraft.commands.execution.Frame;
 import net.minecraft.commands.execution.UnboundEntryAction;
 import net.minecraft.commands.functions.MacroFunction;
 import net.minecraft.commands.functions.StringTemplate;
@@ -14,19 +17,52 @@ import net.minecraft.resources.ResourceLocation;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
 
 public class ControlFlowStatement<T extends ExecutionCommandSource<T>> {
-    private ControlFlowStatement(Object data, @Nullable CommandDispatcher<T> dispatcher) {
+    /**
+     * Collects the sources matched by a statement.
+     */
+    @FunctionalInterface
+    public interface Matcher<T> {
+        void match(T source, List<T> out, ExecutionContext<T> context, Frame frame);
+    }
+
+    /**
+     * Matches statements producing at most one source.
+     */
+    @FunctionalInterface
+    public interface SingleMatcher<T> {
+        /**
+         * @return The matched source, or {@code null} if nothing matched.
+         */
+        @Nullable
+        T match(T source, ExecutionContext<T> context);
+    }
+
+    /**
+     * Matches sources lazily, see {@link com.floweytf.mcfext.execution.SourcePipeline#stream}.
+     */
+    @FunctionalInterface
+    public interface Streamer<T> {
+        Iterator<T> stream(T source, ExecutionContext<T> context);
+    }
+
+    private ControlFlowStatement(Object data, @Nullable CommandDispatcher<T> dispatcher, @Nullable Matcher<T> lowered,
+                                 @Nullable SingleMatcher<T> single, @Nullable Streamer<T> streamer) {
         this.data = data;
         this.dispatcher = dispatcher;
+        this.lowered = lowered;
+        this.single = single;
+        this.streamer = streamer;
     }
 
     private class MyMacroEntry extends MacroFunction.MacroEntry<T> {
-        private final Function<UnboundEntryAction<T>, ControlInstr<T>> mapper;
+        private final Function<Matcher<T>, ControlInstr<T>> mapper;
 
-        public MyMacroEntry(StringTemplate t, IntList l, Function<UnboundEntryAction<T>, ControlInstr<T>> mapper) {
+        public MyMacroEntry(StringTemplate t, IntList l, Function<Matcher<T>, ControlInstr<T>> mapper) {
             super(t, l);
             this.mapper = mapper;
         }
@@ -38,36 +74,84 @@ public class ControlFlowStatement<T extends ExecutionCommandSource<T>> {
             @NotNull ResourceLocation id
         ) throws FunctionInstantiationException {
             assert ControlFlowStatement.this.dispatcher != null;
-            return mapper.apply(super.instantiate(args, ControlFlowStatement.this.dispatcher, source, id));
+            return mapper.apply(dispatch(super.instantiate(args, ControlFlowStatement.this.dispatcher, source, id)));
         }
     }
 
     private final Object data;
     @Nullable
     private final CommandDispatcher<T> dispatcher;
+    @Nullable
+    private final Matcher<T> lowered;
+    @Nullable
+    private final SingleMatcher<T> single;
+    @Nullable
+    private final Streamer<T> streamer;
+
+    /**
+     * Matches by executing the statement as a command, with a {@link SourceSink} collecting the sources.
+     */
+    private static <T> Matcher<T> dispatch(UnboundEntryAction<T> action) {
+        return (source, out, context, frame) -> action.execute(source, context, SourceSink.attach(frame, out));
+    }
 
     @SuppressWarnings("unchecked")
-    public void emit(CodeGenerator<T> generator, Function<UnboundEntryAction<T>, ControlInstr<T>> mapper) {
+    public void emit(CodeGenerator<T> generator, Function<Matcher<T>, ControlInstr<T>> mapper) {
         if (data instanceof IntObjectPair<?> info) {
             generator.emitMacroCustom((String) info.second(), (s, l) -> new MyMacroEntry(s, l, mapper));
+        } else if (lowered != null) {
+            generator.emitControl(mapper.apply(lowered));
         } else {
-            generator.emitControl(mapper.apply((UnboundEntryAction<T>) data));
+            generator.emitControl(mapper.apply(dispatch((UnboundEntryAction<T>) data)));
         }
     }
 
+    /**
+     * @return The matcher for this statement, if it can produce at most one source.
+     */
+    @Nullable
+    public SingleMatcher<T> single() {
+        return single;
+    }
+
+    /**
+     * @return The lazy matcher for this statement, if it should be streamed.
+     */
+    @Nullable
+    public Streamer<T> streamer() {
+        return streamer;
+    }
+
     public static <T extends ExecutionCommandSource<T>> ControlFlowStatement<T> plain(UnboundEntryAction<T> action) {
-        return new ControlFlowStatement<>(action, null);
+        return new ControlFlowStatement<>(action, null, null, null, null);
+    }
+
+    /**
+     * A statement that was lowered at parse time, and doesn't need to go through brigadier when matching.
+     *
+     * @param action   The statement as a command, for display.
+     * @param lowered  The lowered statement.
+     * @param single   The lowered statement, if it produces at most one source.
+     * @param streamer The lowered statement, if it should be streamed.
+     */
+    public static <T extends ExecutionCommandSource<T>> ControlFlowStatement<T> lowered(
+        UnboundEntryAction<T> action, Matcher<T> lowered, @Nullable SingleMatcher<T> single,
+        @Nullable Streamer<T> streamer
+    ) {
+        return new ControlFlowStatement<>(action, null, lowered, single, streamer);
     }
 
     public static <T extends ExecutionCommandSource<T>> ControlFlowStatement<T> macro(CommandDispatcher<T> dispatch,
                                                                                       String text, int line) {
-        return new ControlFlowStatement<>(IntObjectPair.of(line, text), dispatch);
+        return new ControlFlowStatement<>(IntObjectPair.of(line, text), dispatch, null, null, null);
     }
 
     @Override
     public String toString() {
         if (data instanceof IntObjectPair<?> info) {
             return "ControlFlowStatement[macro, " + info.second() + "]";
+        } else if (lowered != null) {
+            return "ControlFlowStatement[lowered, " + data + "]";
         } else {
             return "ControlFlowStatement[" + data + "]";
         }
@@ -17,11 +17,21 @@ public class ParseFeatureSet {
             .put("cfv2", (s, f) -> s.v2ControlFlow = f)
             .put("subroutine", (s, f) -> s.subroutines = f)
             .put("debug_dump", (s, f) -> s.debugDump = f)
+            .put("time_slice", (s, f) -> s.timeSlice = f)
+            .put("suspend", (s, f) -> s.suspend = f)
+            .put("stream", (s, f) -> s.stream = f)
+            .put("memo_predicates", (s, f) -> s.memoPredicates = f)
+            .put("noinline", (s, f) -> s.noInline = f)
             .build();
 
     private boolean v2ControlFlow = false;
     private boolean subroutines = false;
     private boolean debugDump = false;
+    private boolean timeSlice = false;
+    private boolean suspend = false;
+    private boolean stream = false;
+    private boolean memoPredicates = false;
+    private boolean noInline = false;
 
     public boolean isV2ControlFlow() {
         return v2ControlFlow;
@@ -35,6 +45,26 @@ public class ParseFeatureSet {
         return debugDump;
     }
 
+    public boolean isTimeSlice() {
+        return timeSlice;
+    }
+
+    public boolean isSuspend() {
+        return suspend;
+    }
+
+    public boolean isStream() {
+        return stream;
+    }
+
+    public boolean isMemoPredicates() {
+        return memoPredicates;
+    }
+
+    public boolean isNoInline() {
+        return noInline;
+    }
+
     public boolean set(String name, boolean value) {
         final var handler = CONSUMERS.get(name);
         if (handler != null) {
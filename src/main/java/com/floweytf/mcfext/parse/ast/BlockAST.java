@@ -2,7 +2,11 @@ package com.floweytf.mcfext.parse.ast;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
 import com.floweytf.mcfext.parse.Diagnostics;
+import com.floweytf.mcfext.parse.ast.subroutine.SubroutineCallAST;
+import com.floweytf.mcfext.parse.ast.subroutine.SubroutineReturnAST;
 import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.execution.tasks.BuildContexts;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
 import java.util.function.Consumer;
@@ -16,9 +20,59 @@ public class BlockAST extends ASTNode {
 
     @Override
     public void emit(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
-        for (final var child : children) {
+        emitChildren(diagnostics, cgCtx, gen, false);
+    }
+
+    /**
+     * Emits this block as the body of a subroutine, where falling off the end of the block returns from the
+     * subroutine.
+     *
+     * @return Whether the block ends in a tail call, in which case the trailing subroutine return is unreachable and
+     * should not be emitted.
+     */
+    public boolean emitTail(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
+        return emitChildren(diagnostics, cgCtx, gen, true);
+    }
+
+    private boolean emitChildren(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen,
+                                 boolean isTail) {
+        var endsInTailCall = false;
+
+        for (int i = 0; i < children.size(); i++) {
+            final var child = children.get(i);
+            final var next = i + 1 < children.size() ? children.get(i + 1) : null;
+
+            // A subroutine call directly followed by a return (or the end of the subroutine) is in tail position.
+            // Since subroutine returns unwind everything up to the base pointer, this holds regardless of how deeply
+            // this block is nested within the subroutine. Returns from the body of an inlined subroutine don't unwind
+            // anything, and aren't tail positions.
+            if (child instanceof SubroutineCallAST call && cgCtx.inlineReturn() == null &&
+                (next == null ? isTail : next instanceof SubroutineReturnAST)) {
+                call.emitTail(diagnostics, cgCtx, gen);
+                endsInTailCall = true;
+                // skip the now-unreachable return
+                i++;
+                continue;
+            }
+
             child.emit(diagnostics, cgCtx, gen);
+            endsInTailCall = false;
+        }
+
+        return endsInTailCall;
+    }
+
+    /**
+     * @return The command making up this block, if the block is a single plain brigadier command.
+     */
+    @Nullable
+    public BuildContexts.Unbound<CommandSourceStack> singleCommand() {
+        if (children.size() == 1 && children.get(0) instanceof CommandAST command &&
+            command.action() instanceof BuildContexts.Unbound<CommandSourceStack> unbound) {
+            return unbound;
         }
+
+        return null;
     }
 
     @Override
@@ -1,14 +1,25 @@
 package com.floweytf.mcfext.parse.ast;
 
 import com.floweytf.mcfext.codegen.Label;
+import com.floweytf.mcfext.parse.ast.subroutine.SubroutineDefinitionAST;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.resources.ResourceLocation;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public final class CodegenContext {
     private @Nullable Label breakExitLabel;
     private final Map<String, Label> subroutines = new HashMap<>();
+    private final List<ResourceLocation> imports = new ArrayList<>();
+    private boolean inline = true;
+    private final Map<String, SubroutineDefinitionAST> inlinedSubroutines = new HashMap<>();
+    private final Object2IntMap<String> inlinedCalls = new Object2IntOpenHashMap<>();
+    private @Nullable Label inlineReturn;
 
     public CodegenContext(@Nullable Label breakExitLabel) {
         this.breakExitLabel = breakExitLabel;
@@ -29,4 +40,44 @@ public final class CodegenContext {
     public Map<String, Label> subroutines() {
         return subroutines;
     }
+
+    /**
+     * @return The functions subroutines are imported from, in order.
+     */
+    public List<ResourceLocation> imports() {
+        return imports;
+    }
+
+    public boolean inline() {
+        return inline;
+    }
+
+    public void inline(boolean inline) {
+        this.inline = inline;
+    }
+
+    /**
+     * @return The local subroutines whose calls are replaced with their body, see {@link TopLevelAST}.
+     */
+    public Map<String, SubroutineDefinitionAST> inlinedSubroutines() {
+        return inlinedSubroutines;
+    }
+
+    /**
+     * @return The number of calls inlined, by subroutine.
+     */
+    public Object2IntMap<String> inlinedCalls() {
+        return inlinedCalls;
+    }
+
+    /**
+     * @return The label a subroutine return branches to, if emitting the body of an inlined subroutine.
+     */
+    public @Nullable Label inlineReturn() {
+        return inlineReturn;
+    }
+
+    public void inlineReturn(@Nullable Label inlineReturn) {
+        this.inlineReturn = inlineReturn;
+    }
 }
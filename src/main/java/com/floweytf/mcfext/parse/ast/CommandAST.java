@@ -14,6 +14,10 @@ public class CommandAST extends ASTNode {
         this.action = action;
     }
 
+    public UnboundEntryAction<CommandSourceStack> action() {
+        return action;
+    }
+
     @Override
     public void emit(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
         gen.emitPlain(action);
@@ -1,13 +1,20 @@
 package com.floweytf.mcfext.parse.ast;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
+import com.floweytf.mcfext.execution.ExecConfig;
 import com.floweytf.mcfext.execution.instr.BranchInstr;
 import com.floweytf.mcfext.parse.Diagnostics;
+import com.floweytf.mcfext.parse.ast.subroutine.SubroutineCallAST;
 import com.floweytf.mcfext.parse.ast.subroutine.SubroutineDefinitionAST;
+import com.floweytf.mcfext.parse.ast.subroutine.SubroutineReturnAST;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.commands.CommandSourceStack;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 
 public class TopLevelAST extends ASTNode {
@@ -36,7 +43,15 @@ public class TopLevelAST extends ASTNode {
             map.put(subroutine.name(), subroutine);
         }
 
-        map.forEach((name, ast) -> cgCtx.subroutines().put(name, gen.defineLabel("subroutine_" + name)));
+        map.forEach((name, ast) -> {
+            final var label = gen.defineLabel("subroutine_" + name);
+            cgCtx.subroutines().put(name, label);
+            gen.defineSubroutine(name, label);
+        });
+
+        if (cgCtx.inline()) {
+            planInlining(map, cgCtx);
+        }
 
         block.emit(diagnostics, cgCtx, gen);
         if (!subroutines.isEmpty()) {
@@ -48,6 +63,81 @@ public class TopLevelAST extends ASTNode {
         }
     }
 
+    /**
+     * Walks {@code node} and everything below it.
+     */
+    private static void walk(ASTNode node, Consumer<ASTNode> consumer) {
+        consumer.accept(node);
+        node.visit(child -> walk(child, consumer));
+    }
+
+    /**
+     * Picks the subroutines whose calls are replaced with their body: small ones, and ones only called once (and not
+     * too large). Recursive subroutines can't be inlined, and neither can subroutines returning from within control
+     * flow, since the return has to unwind the control flow's state.
+     * <p>
+     * The subroutines stay defined regardless, as other functions may import them.
+     */
+    private void planInlining(Map<String, SubroutineDefinitionAST> definitions, CodegenContext cgCtx) {
+        final var callSites = new Object2IntOpenHashMap<String>();
+        final var callees = new HashMap<String, Set<String>>();
+        final Consumer<ASTNode> countCalls = node -> {
+            if (node instanceof SubroutineCallAST call) {
+                callSites.addTo(call.name(), 1);
+            }
+        };
+
+        walk(block, countCalls);
+
+        for (final var subroutine : definitions.values()) {
+            final var calls = new HashSet<String>();
+            walk(subroutine.body(), node -> {
+                countCalls.accept(node);
+                if (node instanceof SubroutineCallAST call && definitions.containsKey(call.name())) {
+                    calls.add(call.name());
+                }
+            });
+            callees.put(subroutine.name(), calls);
+        }
+
+        for (final var subroutine : definitions.values()) {
+            final var name = subroutine.name();
+            final var size = new int[] {0};
+            walk(subroutine.body(), node -> size[0]++);
+
+            final var isSmall = size[0] <= ExecConfig.INLINE_MAX_SIZE;
+            final var isSingleUse = callSites.getInt(name) == 1 && size[0] <= ExecConfig.INLINE_SINGLE_USE_MAX_SIZE;
+
+            if ((isSmall || isSingleUse) && !returnsFromControlFlow(subroutine) &&
+                !reaches(callees, name, name, new HashSet<>())) {
+                cgCtx.inlinedSubroutines().put(name, subroutine);
+            }
+        }
+    }
+
+    private static boolean returnsFromControlFlow(SubroutineDefinitionAST subroutine) {
+        final var nested = new boolean[] {false};
+        subroutine.body().visit(child -> walk(child, node -> {
+            if (node != child && node instanceof SubroutineReturnAST) {
+                nested[0] = true;
+            }
+        }));
+        return nested[0];
+    }
+
+    /**
+     * @return Whether {@code target} may be called (directly or not) by {@code from}.
+     */
+    private static boolean reaches(Map<String, Set<String>> callees, String from, String target, Set<String> seen) {
+        for (final var callee : callees.get(from)) {
+            if (callee.equals(target) || (seen.add(callee) && reaches(callees, callee, target, seen))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Override
     public void visit(Consumer<ASTNode> visitor) {
         subroutines.forEach(visitor);
@@ -2,7 +2,7 @@ package com.floweytf.mcfext.parse.ast.cfv1;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
 import com.floweytf.mcfext.codegen.Linkable;
-import com.floweytf.mcfext.execution.FunctionExecSource;
+import com.floweytf.mcfext.execution.FuncExecStack;
 import com.floweytf.mcfext.execution.instr.ControlInstr;
 import com.floweytf.mcfext.parse.ControlFlowStatement;
 import com.floweytf.mcfext.parse.Diagnostics;
@@ -37,23 +37,51 @@ import java.util.function.Consumer;
  *   PUSH[InstrAddress](&end)
  * wrapper_function:
  *   PUSH[Source](%source)
- *   PUSH[SourceList](runSelectors())
+ * match:
+ *   PUSH[SourceCursor](runSelectors())
  * loop_begin:
- *   %0 = PEEK[Source](%source)
- *   BR_COND(%0.isEmpty(), &loop_exit)
- *   %source = %0.popFront()
+ *   %0 = PEEK[SourceCursor]()
+ *   BR_COND(!%0.hasNext(), &loop_exit)
+ *   %source = %0.next()
  *
  *   // ... 'run' statement body
- *   CALL(wrapper_function)
- *   BR(&loop_begin)
+ *   %0 = PEEK[SourceCursor]()
+ *   if (%0.hasNext()) {
+ *     PUSH[InstrAddress](&loop_begin)
+ *     BR(&wrapper_function)
+ *   } else {
+ *     POP[SourceCursor]()
+ *     BR(&match)
+ *   }
  * loop_exit:
- *   POP[SourceList]()
+ *   POP[SourceCursor]()
  *   %source = POP[Source]()
  *   RET()
  *
  * end:
  * }
  * </pre>
+ * The recursive call is a tail call once the last source has been taken from the cursor: all that would be left to do
+ * after it returns is to restore the source and return. In that case, the current frame is reused by jumping straight
+ * to {@code match}, which keeps the stack depth constant no matter how many times the loop recurses. Otherwise, the
+ * call returns straight to {@code loop_begin}, rather than to a {@code BR(&loop_begin)} following it.
+ * <h3>Single source headers</h3>
+ * If the header can only produce one source (see {@link ControlFlowStatement#single()}), every recursive call is a
+ * tail call, and the loop becomes a plain loop, with no source list or return address at all.
+ * <pre>
+ * {@code
+ *   PUSH[Source](%source)
+ * loop_begin:
+ *   %0 = runSelectorSingle()
+ *   BR_COND(%0 == null, &loop_exit)
+ *   %source = %0
+ *
+ *   // ... 'run' statement body
+ *   BR(&loop_begin)
+ * loop_exit:
+ *   %source = POP[Source]()
+ * }
+ * </pre>
  */
 public class LoopAST extends ASTNode {
     private final BlockAST body;
@@ -66,7 +94,14 @@ public class LoopAST extends ASTNode {
 
     @Override
     public void emit(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
+        final var single = statement.single();
+        if (single != null) {
+            emitSingle(diagnostics, cgCtx, gen, single);
+            return;
+        }
+
         final var wrapperFuncLabel = gen.defineLabel("cfv1$loop$wrapper_func");
+        final var matchLabel = gen.defineLabel("cfv1$loop$match");
         final var loopBeginLabel = gen.defineLabel("cfv1$loop$loop_begin");
         final var loopExitLabel = gen.defineLabel("cfv1$loop$loop_exit");
         final var endLabel = gen.defineLabel("cfv1$loop$end");
@@ -78,60 +113,158 @@ public class LoopAST extends ASTNode {
         gen.emitLabel(wrapperFuncLabel);
 
         // PUSH[Source](%source)
-        // PUSH[SourceList](runSelectors())
-        statement.emit(gen, action -> ControlInstr.named(
-            "cfv1::loop::push_source_and_match",
-            (state, context, frame) -> {
-                state.stack.pushSource(state.source);
-                state.stack.pushSourceList(new ArrayList<>());
-                action.execute(new FunctionExecSource(state.source, state), context, frame);
-            }
-        ));
+        gen.emitControlNamed(
+            "cfv1::loop::push_source",
+            verifier -> verifier.push(FuncExecStack.Type.CONTEXT),
+            (state, context, frame) -> state.pushSource()
+        );
+
+        // match:
+        gen.emitLabel(matchLabel);
+
+        // PUSH[SourceCursor](runSelectors())
+        final var streamer = statement.streamer();
+        if (streamer != null) {
+            gen.emitControlNamed(
+                "cfv1::loop::stream",
+                verifier -> verifier.push(FuncExecStack.Type.CONTEXT_CURSOR),
+                (state, context, frame) -> state.stack().pushSourceStream(streamer.stream(state.source, context))
+            );
+        } else {
+            statement.emit(gen, matcher -> ControlInstr.named(
+                "cfv1::loop::match",
+                verifier -> verifier.push(FuncExecStack.Type.CONTEXT_CURSOR),
+                (state, context, frame) -> {
+                    final var sources = new ArrayList<CommandSourceStack>();
+                    matcher.match(state.source, sources, context, frame);
+                    state.stack().pushSourceCursor(sources);
+                }
+            ));
+        }
 
         // loop_begin:
         gen.emitLabel(loopBeginLabel);
 
-        // %0 = PEEK[Source](%source)
-        // BR_COND(%0.isEmpty(), &loop_exit)
-        // %source = %0.popFront()
+        // %0 = PEEK[SourceCursor]()
+        // BR_COND(!%0.hasNext(), &loop_exit)
+        // %source = %0.next()
         gen.emitControlLinkable(List.of(loopExitLabel), () -> {
             final var loopExitTarget = loopExitLabel.offset();
-            return ControlInstr.named("cfv1::loop::pop_source_or_branch", (state, context, frame) -> {
-                if (state.stack.peekSourceList().isEmpty()) {
+            return ControlInstr.named("cfv1::loop::pop_source_or_branch", verifier -> {
+                verifier.peek(FuncExecStack.Type.CONTEXT_CURSOR);
+                verifier.branch(loopExitTarget);
+            }, (state, context, frame) -> {
+                if (!state.stack().sourceCursorHasNext()) {
                     state.instr = loopExitTarget;
                     return;
                 }
 
-                final var list = state.stack.popSourceList();
-                state.stack.pushSourceList(list.subList(1, list.size()));
-                state.source = list.get(0);
+                state.source = state.stack().sourceCursorNext();
             });
         });
 
         // ... body
         body.emit(diagnostics, cgCtx, gen);
 
-        // CALL(wrapper_function)
-        // BR(&loop_begin)
-        gen.emitLinkable(Linkable.call(wrapperFuncLabel));
-        gen.emitLinkable(Linkable.branch(loopBeginLabel));
+        // %0 = PEEK[SourceCursor]()
+        // if (%0.hasNext()) {
+        //   PUSH[InstrAddress](&loop_begin)
+        //   BR(&wrapper_function)
+        // } else {
+        //   POP[SourceCursor]()
+        //   BR(&match)
+        // }
+        gen.emitControlLinkable(List.of(wrapperFuncLabel, matchLabel, loopBeginLabel), () -> {
+            final var wrapperFuncTarget = wrapperFuncLabel.offset();
+            final var matchTarget = matchLabel.offset();
+            final var loopBeginTarget = loopBeginLabel.offset();
+            return ControlInstr.named("cfv1::loop::recurse", verifier -> {
+                verifier.peek(FuncExecStack.Type.CONTEXT_CURSOR);
+                verifier.call(wrapperFuncTarget, loopBeginTarget);
+                verifier.pop(FuncExecStack.Type.CONTEXT_CURSOR);
+                verifier.jump(matchTarget);
+            }, (state, context, frame) -> {
+                if (state.stack().sourceCursorHasNext()) {
+                    state.stack().pushInstrAddress(loopBeginTarget);
+                    state.instr = wrapperFuncTarget;
+                    return;
+                }
+
+                state.stack().popSourceCursor();
+                state.instr = matchTarget;
+            });
+        });
 
         // loop_exit:
         gen.emitLabel(loopExitLabel);
 
-        // POP[SourceList]()
+        // POP[SourceCursor]()
         // %source = POP[Source]()
         // RET()
-        gen.emitControlNamed("cfv1::loop::function_exit", (state, context, frame) -> {
-            state.stack.popSourceList();
-            state.source = state.stack.popSource();
-            state.instr = state.stack.popInstrAddress();
+        gen.emitControlNamed("cfv1::loop::function_exit", verifier -> {
+            verifier.pop(FuncExecStack.Type.CONTEXT_CURSOR);
+            verifier.pop(FuncExecStack.Type.CONTEXT);
+            verifier.ret();
+        }, (state, context, frame) -> {
+            state.stack().popSourceCursor();
+            state.source = state.stack().popSource();
+            state.instr = state.stack().popInstrAddress();
         });
 
         // end:
         gen.emitLabel(endLabel);
     }
 
+    private void emitSingle(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen,
+                            ControlFlowStatement.SingleMatcher<CommandSourceStack> single) {
+        final var loopBeginLabel = gen.defineLabel("cfv1$loop$loop_begin");
+        final var loopExitLabel = gen.defineLabel("cfv1$loop$loop_exit");
+
+        // PUSH[Source](%source)
+        gen.emitControlNamed(
+            "cfv1::loop::push_source",
+            verifier -> verifier.push(FuncExecStack.Type.CONTEXT),
+            (state, context, frame) -> state.pushSource()
+        );
+
+        // loop_begin:
+        gen.emitLabel(loopBeginLabel);
+
+        // %0 = runSelectorSingle()
+        // BR_COND(%0 == null, &loop_exit)
+        // %source = %0
+        gen.emitControlLinkable(List.of(loopExitLabel), () -> {
+            final var loopExitTarget = loopExitLabel.offset();
+            return ControlInstr.named("cfv1::loop::match_single", verifier -> verifier.branch(loopExitTarget),
+                (state, context, frame) -> {
+                    final var source = single.match(state.source, context);
+
+                    if (source == null) {
+                        state.instr = loopExitTarget;
+                        return;
+                    }
+
+                    state.source = source;
+                });
+        });
+
+        // ... body
+        body.emit(diagnostics, cgCtx, gen);
+
+        // BR(&loop_begin)
+        gen.emitLinkable(Linkable.branch(loopBeginLabel));
+
+        // loop_exit:
+        gen.emitLabel(loopExitLabel);
+
+        // %source = POP[Source]()
+        gen.emitControlNamed(
+            "cfv1::loop::pop_source",
+            verifier -> verifier.pop(FuncExecStack.Type.CONTEXT),
+            (state, context, frame) -> state.popSource()
+        );
+    }
+
     @Override
     public void visit(Consumer<ASTNode> visitor) {
         visitor.accept(body);
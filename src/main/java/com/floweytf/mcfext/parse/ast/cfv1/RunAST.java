@@ -2,7 +2,7 @@ package com.floweytf.mcfext.parse.ast.cfv1;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
 import com.floweytf.mcfext.codegen.Linkable;
-import com.floweytf.mcfext.execution.FunctionExecSource;
+import com.floweytf.mcfext.execution.FuncExecStack;
 import com.floweytf.mcfext.execution.instr.ControlInstr;
 import com.floweytf.mcfext.parse.ControlFlowStatement;
 import com.floweytf.mcfext.parse.Diagnostics;
@@ -10,6 +10,8 @@ import com.floweytf.mcfext.parse.ast.ASTNode;
 import com.floweytf.mcfext.parse.ast.BlockAST;
 import com.floweytf.mcfext.parse.ast.CodegenContext;
 import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.execution.ChainModifiers;
+import net.minecraft.commands.execution.tasks.BuildContexts;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -30,20 +32,48 @@ import java.util.function.Consumer;
  * <pre>
  * {@code
  *   PUSH[Source](%source)
- *   PUSH[SourceList](runSelectors())
+ *   PUSH[SourceCursor](runSelectors())
  * loop_begin:
- *   %0 = PEEK[Source](%source)
- *   BR_COND(%0.isEmpty(), &loop_exit)
- *   %source = %0.popFront()
+ *   %0 = PEEK[SourceCursor]()
+ *   BR_COND(!%0.hasNext(), &loop_exit)
+ *   %source = %0.next()
  *
  *   // ... 'run' statement body
  *
  *   BR(&loop_begin)
  * loop_exit:
- *   POP[SourceList]()
+ *   POP[SourceCursor]()
  *   %source = POP[Source]()
  * }
  * </pre>
+ * <h3>Single source headers</h3>
+ * Headers that were lowered at parse time and can only produce one source (see
+ * {@link ControlFlowStatement#single()}) don't need a source list at all.
+ * <pre>
+ * {@code
+ *   PUSH[Source](%source)
+ *   %0 = runSelectorSingle()
+ *   BR_COND(%0 == null, &exit)
+ *   %source = %0
+ *
+ *   // ... 'run' statement body
+ * exit:
+ *   %source = POP[Source]()
+ * }
+ * </pre>
+ * <h3>Batched bodies</h3>
+ * If the body is a single plain command, it is instead run over all the matched sources at once, the same way vanilla
+ * runs {@code execute as @e run <command>}. This replaces the per-source loop (and its queue entries) with a single
+ * continuation over the source list, while the command limit is still charged per source.
+ * <pre>
+ * {@code
+ *   PUSH[Source](%source)
+ *   PUSH[SourceCursor](runSelectors())
+ *   %0 = POP[SourceCursor]()
+ *   %source = POP[Source]()
+ *   RUN_ALL(command, %0)
+ * }
+ * </pre>
  */
 public class RunAST extends ASTNode {
     private final BlockAST body;
@@ -59,34 +89,65 @@ public class RunAST extends ASTNode {
         final var loopBegin = gen.defineLabel("cfv1$run$loop_begin");
         final var loopExit = gen.defineLabel("cfv1$run$loop_exit");
 
+        final var single = statement.single();
+        if (single != null) {
+            emitSingle(diagnostics, cgCtx, gen, single);
+            return;
+        }
+
+        final var streamer = statement.streamer();
+
         // PUSH[Source](%source)
-        // PUSH[SourceList](runSelectors())
-        statement.emit(gen, action -> ControlInstr.named(
-            "cfv1::loop::push_source_and_match",
-            (state, context, frame) -> {
-                state.stack.pushSource(state.source);
-                state.stack.pushSourceList(new ArrayList<>());
-                action.execute(new FunctionExecSource(state.source, state), context, frame);
-            }
-        ));
+        // PUSH[SourceCursor](runSelectors())
+        if (streamer != null) {
+            gen.emitControlNamed("cfv1::run::push_source_and_stream", verifier -> {
+                verifier.push(FuncExecStack.Type.CONTEXT);
+                verifier.push(FuncExecStack.Type.CONTEXT_CURSOR);
+            }, (state, context, frame) -> {
+                state.stack().pushSource(state.source);
+                state.stack().pushSourceStream(streamer.stream(state.source, context));
+            });
+        } else {
+            statement.emit(gen, matcher -> ControlInstr.named(
+                "cfv1::loop::push_source_and_match",
+                verifier -> {
+                    verifier.push(FuncExecStack.Type.CONTEXT);
+                    verifier.push(FuncExecStack.Type.CONTEXT_CURSOR);
+                },
+                (state, context, frame) -> {
+                    state.stack().pushSource(state.source);
+                    final var sources = new ArrayList<CommandSourceStack>();
+                    matcher.match(state.source, sources, context, frame);
+                    state.stack().pushSourceCursor(sources);
+                }
+            ));
+        }
+
+        // Batching needs the whole source list up front, so streamed headers always loop
+        final var command = streamer == null ? body.singleCommand() : null;
+        if (command != null) {
+            emitBatch(gen, command);
+            return;
+        }
 
         // loop_begin:
         gen.emitLabel(loopBegin);
 
-        // %0 = PEEK[Source](%source)
-        // BR_COND(%0.isEmpty(), &loop_exit)
-        // %source = %0.popFront()
+        // %0 = PEEK[SourceCursor]()
+        // BR_COND(!%0.hasNext(), &loop_exit)
+        // %source = %0.next()
         gen.emitControlLinkable(List.of(loopExit), () -> {
             final var loopExitTarget = loopExit.offset();
-            return ControlInstr.named("cfv1::run::pop_source_or_branch", (state, context, frame) -> {
-                if (state.stack.peekSourceList().isEmpty()) {
+            return ControlInstr.named("cfv1::run::pop_source_or_branch", verifier -> {
+                verifier.peek(FuncExecStack.Type.CONTEXT_CURSOR);
+                verifier.branch(loopExitTarget);
+            }, (state, context, frame) -> {
+                if (!state.stack().sourceCursorHasNext()) {
                     state.instr = loopExitTarget;
                     return;
                 }
 
-                final var list = state.stack.popSourceList();
-                state.stack.pushSourceList(list.subList(1, list.size()));
-                state.source = list.get(0);
+                state.source = state.stack().sourceCursorNext();
             });
         });
 
@@ -99,11 +160,75 @@ public class RunAST extends ASTNode {
         // loop_exit:
         gen.emitLabel(loopExit);
 
-        // POP[SourceList]()
+        // POP[SourceCursor]()
         // %source = POP[Source]()
-        gen.emitControlNamed("cfv1::run::cleanup", (state, context, frame) -> {
-            state.stack.popSourceList();
-            state.source = state.stack.popSource();
+        gen.emitControlNamed("cfv1::run::cleanup", verifier -> {
+            verifier.pop(FuncExecStack.Type.CONTEXT_CURSOR);
+            verifier.pop(FuncExecStack.Type.CONTEXT);
+        }, (state, context, frame) -> {
+            state.stack().popSourceCursor();
+            state.source = state.stack().popSource();
+        });
+    }
+
+    private void emitSingle(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen,
+                            ControlFlowStatement.SingleMatcher<CommandSourceStack> single) {
+        final var exit = gen.defineLabel("cfv1$run$exit");
+
+        // PUSH[Source](%source)
+        gen.emitControlNamed(
+            "cfv1::run::push_source",
+            verifier -> verifier.push(FuncExecStack.Type.CONTEXT),
+            (state, context, frame) -> state.pushSource()
+        );
+
+        // %0 = runSelectorSingle()
+        // BR_COND(%0 == null, &exit)
+        // %source = %0
+        gen.emitControlLinkable(List.of(exit), () -> {
+            final var exitTarget = exit.offset();
+            return ControlInstr.named("cfv1::run::match_single", verifier -> verifier.branch(exitTarget),
+                (state, context, frame) -> {
+                    final var source = single.match(state.source, context);
+
+                    if (source == null) {
+                        state.instr = exitTarget;
+                        return;
+                    }
+
+                    state.source = source;
+                });
+        });
+
+        // ... body
+        body.emit(diagnostics, cgCtx, gen);
+
+        // exit:
+        gen.emitLabel(exit);
+
+        // %source = POP[Source]()
+        gen.emitControlNamed(
+            "cfv1::run::pop_source",
+            verifier -> verifier.pop(FuncExecStack.Type.CONTEXT),
+            (state, context, frame) -> state.popSource()
+        );
+    }
+
+    private void emitBatch(CodeGenerator<CommandSourceStack> gen, BuildContexts.Unbound<CommandSourceStack> command) {
+        // %0 = POP[SourceCursor]()
+        // %source = POP[Source]()
+        // RUN_ALL(command, %0)
+        gen.emitControlNamed("cfv1::run::batch[" + command + "]", verifier -> {
+            verifier.pop(FuncExecStack.Type.CONTEXT_CURSOR);
+            verifier.pop(FuncExecStack.Type.CONTEXT);
+        }, (state, context, frame) -> {
+            final var sources = state.stack().popSourceCursor();
+            state.source = state.stack().popSource();
+
+            if (!sources.isEmpty()) {
+                command.traceCommandStart(context, frame);
+                command.execute(state.source, sources, context, frame, ChainModifiers.DEFAULT);
+            }
         });
     }
 
@@ -1,7 +1,10 @@
 package com.floweytf.mcfext.parse.ast.subroutine;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
+import com.floweytf.mcfext.execution.instr.ImportCallInstr;
 import com.floweytf.mcfext.execution.instr.SubroutineCallInstr;
+import com.floweytf.mcfext.execution.instr.SubroutineRetInstr;
+import com.floweytf.mcfext.execution.instr.SubroutineTailCallInstr;
 import com.floweytf.mcfext.parse.Diagnostics;
 import com.floweytf.mcfext.parse.ast.ASTNode;
 import com.floweytf.mcfext.parse.ast.CodegenContext;
@@ -21,10 +24,57 @@ public class SubroutineCallAST extends ASTNode {
         this.lineNo = lineNo;
     }
 
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Emits the body of the subroutine in place of the call, if the subroutine is inlined (see
+     * {@link CodegenContext#inlinedSubroutines()}). Returns from the body continue after it, which is where the call
+     * would have returned to.
+     *
+     * @return Whether the body was emitted.
+     */
+    private boolean emitInline(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
+        final var subroutine = cgCtx.inlinedSubroutines().get(name);
+        if (subroutine == null) {
+            return false;
+        }
+
+        final var end = gen.defineLabel("subroutine_inline_" + name);
+        final var prevReturn = cgCtx.inlineReturn();
+        cgCtx.inlineReturn(end);
+        subroutine.body().emit(diagnostics, cgCtx, gen);
+        cgCtx.inlineReturn(prevReturn);
+        gen.emitLabel(end);
+
+        cgCtx.inlinedCalls().mergeInt(name, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Emits a call to a subroutine defined by an imported function, if this isn't a call to a local subroutine.
+     *
+     * @return Whether a call was emitted (or an error reported).
+     */
+    private boolean emitImport(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
+        if (cgCtx.subroutines().containsKey(name)) {
+            return false;
+        }
+
+        // Imported subroutines are only known once every function is loaded, see CallLinker
+        if (cgCtx.imports().isEmpty()) {
+            diagnostics.reportErr(lineNo, ERR_SUBROUTINE_NOT_DEFINED, name);
+            return true;
+        }
+
+        gen.emitControl(new ImportCallInstr<>(List.copyOf(cgCtx.imports()), name));
+        return true;
+    }
+
     @Override
     public void emit(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
-        if (!cgCtx.subroutines().containsKey(name)) {
-            diagnostics.reportErr(lineNo, ERR_SUBROUTINE_NOT_DEFINED, name);
+        if (emitImport(diagnostics, cgCtx, gen) || emitInline(diagnostics, cgCtx, gen)) {
             return;
         }
 
@@ -32,6 +82,28 @@ public class SubroutineCallAST extends ASTNode {
         gen.emitControlLinkable(List.of(targetLabel), () -> new SubroutineCallInstr<>(targetLabel.offset()));
     }
 
+    /**
+     * Emits this call in tail position, reusing the frame of the current subroutine. The emitted code never falls
+     * through, so the caller must not emit the subroutine return that would otherwise follow.
+     *
+     * @see SubroutineTailCallInstr
+     */
+    public void emitTail(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
+        // Imported subroutines run from another function's code, so the call can't reuse the current frame
+        if (emitImport(diagnostics, cgCtx, gen)) {
+            gen.emitControl(SubroutineRetInstr.get());
+            return;
+        }
+
+        if (emitInline(diagnostics, cgCtx, gen)) {
+            gen.emitControl(SubroutineRetInstr.get());
+            return;
+        }
+
+        final var targetLabel = cgCtx.subroutines().get(name);
+        gen.emitControlLinkable(List.of(targetLabel), () -> new SubroutineTailCallInstr<>(targetLabel.offset()));
+    }
+
     @Override
     public void visit(Consumer<ASTNode> visitor) {
 
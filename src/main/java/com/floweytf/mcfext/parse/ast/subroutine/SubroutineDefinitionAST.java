@@ -29,11 +29,16 @@ public class SubroutineDefinitionAST extends ASTNode {
         return line;
     }
 
+    public BlockAST body() {
+        return body;
+    }
+
     @Override
     public void emit(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
         gen.emitLabel(cgCtx.subroutines().get(name));
-        body.emit(diagnostics, cgCtx, gen);
-        gen.emitControl(SubroutineRetInstr.get());
+        if (!body.emitTail(diagnostics, cgCtx, gen)) {
+            gen.emitControl(SubroutineRetInstr.get());
+        }
     }
 
     @Override
@@ -1,6 +1,7 @@
 package com.floweytf.mcfext.parse.ast.subroutine;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
+import com.floweytf.mcfext.codegen.Linkable;
 import com.floweytf.mcfext.execution.instr.SubroutineRetInstr;
 import com.floweytf.mcfext.parse.Diagnostics;
 import com.floweytf.mcfext.parse.ast.ASTNode;
@@ -16,6 +17,13 @@ import java.util.function.Consumer;
 public class SubroutineReturnAST extends ASTNode {
     @Override
     public void emit(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
+        // The body of an inlined subroutine returns by continuing after its call
+        final var inlineReturn = cgCtx.inlineReturn();
+        if (inlineReturn != null) {
+            gen.emitLinkable(Linkable.branch(inlineReturn));
+            return;
+        }
+
         gen.emitControl(SubroutineRetInstr.get());
     }
 
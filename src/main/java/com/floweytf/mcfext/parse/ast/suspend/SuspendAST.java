@@ -0,0 +1,36 @@
+package com.floweytf.mcfext.parse.ast.suspend;
+
+import com.floweytf.mcfext.codegen.CodeGenerator;
+import com.floweytf.mcfext.execution.instr.SuspendInstr;
+import com.floweytf.mcfext.parse.Diagnostics;
+import com.floweytf.mcfext.parse.ast.ASTNode;
+import com.floweytf.mcfext.parse.ast.CodegenContext;
+import net.minecraft.commands.CommandSourceStack;
+
+import java.util.function.Consumer;
+
+/**
+ * Suspends the current MCFunction for a number of ticks ({@code sleep <ticks>}, or {@code yield}, which is one tick).
+ */
+public class SuspendAST extends ASTNode {
+    private final int ticks;
+
+    public SuspendAST(int ticks) {
+        this.ticks = ticks;
+    }
+
+    @Override
+    public void emit(Diagnostics diagnostics, CodegenContext cgCtx, CodeGenerator<CommandSourceStack> gen) {
+        gen.emitControl(new SuspendInstr<>(ticks));
+    }
+
+    @Override
+    public void visit(Consumer<ASTNode> visitor) {
+
+    }
+
+    @Override
+    public String toString() {
+        return "SuspendAST[" + ticks + "]";
+    }
+}
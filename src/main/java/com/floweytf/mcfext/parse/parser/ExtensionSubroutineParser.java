@@ -5,6 +5,7 @@ import com.floweytf.mcfext.parse.ast.BlockAST;
 import com.floweytf.mcfext.parse.ast.subroutine.SubroutineCallAST;
 import com.floweytf.mcfext.parse.ast.subroutine.SubroutineDefinitionAST;
 import com.floweytf.mcfext.parse.ast.subroutine.SubroutineReturnAST;
+import net.minecraft.resources.ResourceLocation;
 
 public class ExtensionSubroutineParser {
     public static void init() {
@@ -85,5 +86,34 @@ public class ExtensionSubroutineParser {
             ParseFeatureSet::isSubroutines,
             notEnabled
         );
+
+        Parser.register(
+            "import",
+            false,
+            (parser, text, lineNo, context) -> {
+                parser.reader.next();
+
+                if (!context.isTopLevel()) {
+                    parser.context.reportErr(lineNo, "import is only allowed at the top level");
+                }
+
+                final var parts = text.split(" ");
+                if (parts.length != 2 || parts[1].isEmpty()) {
+                    parser.context.reportErr(lineNo, "bad import, expected 'import <function>'");
+                    return FeatureParseResult.parseNext();
+                }
+
+                final var id = ResourceLocation.tryParse(parts[1]);
+                if (id == null) {
+                    parser.context.reportErr(lineNo, "bad import, '%s' is not a valid function name", parts[1]);
+                    return FeatureParseResult.parseNext();
+                }
+
+                parser.imports.add(id);
+                return FeatureParseResult.parseNext();
+            },
+            ParseFeatureSet::isSubroutines,
+            notEnabled
+        );
     }
 }
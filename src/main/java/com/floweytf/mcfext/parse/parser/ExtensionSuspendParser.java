@@ -0,0 +1,53 @@
+package com.floweytf.mcfext.parse.parser;
+
+import com.floweytf.mcfext.parse.ParseFeatureSet;
+import com.floweytf.mcfext.parse.ast.suspend.SuspendAST;
+
+public class ExtensionSuspendParser {
+    public static void init() {
+        final var notEnabled = "suspension is not enabled (consider adding 'pragma enable suspend')";
+
+        Parser.register(
+            "yield",
+            false,
+            (parser, text, lineNo, context) -> {
+                parser.reader.next();
+
+                if (!text.equals("yield")) {
+                    parser.context.reportErr(lineNo, "yield takes no parameters");
+                }
+
+                return FeatureParseResult.ast(new SuspendAST(1));
+            },
+            ParseFeatureSet::isSuspend,
+            notEnabled
+        );
+
+        Parser.register(
+            "sleep",
+            false,
+            (parser, text, lineNo, context) -> {
+                parser.reader.next();
+
+                final var parts = text.split(" ");
+                int ticks = -1;
+
+                if (parts.length == 2) {
+                    try {
+                        ticks = Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+
+                if (ticks < 1) {
+                    parser.context.reportErr(lineNo, "bad sleep statement, expected 'sleep <ticks>' with ticks >= 1");
+                    return FeatureParseResult.ast(null);
+                }
+
+                return FeatureParseResult.ast(new SuspendAST(ticks));
+            },
+            ParseFeatureSet::isSuspend,
+            notEnabled
+        );
+    }
+}
@@ -1,6 +1,7 @@
 package com.floweytf.mcfext.parse.parser;
 
-import com.floweytf.mcfext.execution.FunctionExecSource;
+import com.floweytf.mcfext.execution.ExecConfig;
+import com.floweytf.mcfext.execution.SourceSink;
 import com.floweytf.mcfext.parse.ControlFlowStatement;
 import com.floweytf.mcfext.parse.ParseContext;
 import com.floweytf.mcfext.parse.ast.ASTNode;
@@ -10,14 +11,49 @@ import com.floweytf.mcfext.parse.ast.cfv1.RunAST;
 import com.floweytf.mcfext.util.ExecuteCommandUtils;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.StringReader;
+import com.mojang.brigadier.context.ContextChain;
 import net.minecraft.commands.CommandBuildContext;
 import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.execution.CustomCommandExecutor;
+import net.minecraft.commands.execution.tasks.BuildContexts;
 
 import java.util.function.BiFunction;
 
 public class ExtensionsControlFlowV1Parser {
     private static final CommandDispatcher<CommandSourceStack> DISPATCH = new CommandDispatcher<>();
 
+    /**
+     * Terminal command of {@code run}/{@code loop} headers. This is a custom executor, so it runs synchronously for
+     * every matched source, with access to the frame the header is executed in.
+     */
+    @SuppressWarnings("unchecked")
+    private static final CustomCommandExecutor.CommandAdapter<CommandSourceStack> COLLECT_SOURCE =
+        (source, contextChain, chainModifiers, executionControl) -> {
+            if (!(executionControl.currentFrame().returnValueConsumer() instanceof SourceSink<?> sink)) {
+                throw new IllegalStateException("control flow header executed outside of a function");
+            }
+
+            ((SourceSink<CommandSourceStack>) sink).sources().add(source);
+        };
+
+    private static ControlFlowStatement<CommandSourceStack> lower(Parser parser, String text,
+                                                                  ContextChain<CommandSourceStack> chain) {
+        final var action = new BuildContexts.Unbound<>(text, chain);
+        final var pipeline = ExecConfig.LOWER_HEADERS ?
+            ExecuteCommandUtils.lowerV1ControlFlow(chain, parser.features.isMemoPredicates()) : null;
+
+        if (pipeline == null) {
+            return ControlFlowStatement.plain(action);
+        }
+
+        return ControlFlowStatement.lowered(
+            action,
+            (source, out, context, frame) -> pipeline.apply(source, out, context),
+            pipeline.isSingle() ? (source, context) -> pipeline.applySingle(source, context) : null,
+            parser.features.isStream() ? (source, context) -> pipeline.stream(source, context) : null
+        );
+    }
+
     private static ASTNode parse(
         Parser parser, String text, int lineNo, String name, ParseContext context,
         BiFunction<BlockAST, ControlFlowStatement<CommandSourceStack>, ASTNode> constructor
@@ -28,10 +64,10 @@ public class ExtensionsControlFlowV1Parser {
         if (context.isMacro()) {
             statement = ControlFlowStatement.macro(DISPATCH, text, lineNo);
         } else {
-            statement = ControlFlowStatement.plain(parser.parseCommand(
+            statement = parser.parseChain(
                 DISPATCH, new StringReader(text),
                 msg -> parser.context.reportErr(lineNo, "failed to parse '%s' statement: %s", name, msg)
-            ).orElse(null));
+            ).map(chain -> lower(parser, text, chain)).orElse(ControlFlowStatement.plain(null));
         }
 
         return constructor.apply(
@@ -46,17 +82,8 @@ public class ExtensionsControlFlowV1Parser {
     }
 
     public static void init(CommandBuildContext access) {
-        ExecuteCommandUtils.registerV1ControlFlow(DISPATCH, access, "run", context -> {
-            final var source = (FunctionExecSource) context.getSource();
-            source.getExecState().stack.peekSourceList().add(source);
-            return 0;
-        });
-
-        ExecuteCommandUtils.registerV1ControlFlow(DISPATCH, access, "loop", context -> {
-            final var source = (FunctionExecSource) context.getSource();
-            source.getExecState().stack.peekSourceList().add(source);
-            return 0;
-        });
+        ExecuteCommandUtils.registerV1ControlFlow(DISPATCH, access, "run", COLLECT_SOURCE);
+        ExecuteCommandUtils.registerV1ControlFlow(DISPATCH, access, "loop", COLLECT_SOURCE);
 
         Parser.register(
             "run",
@@ -2,6 +2,9 @@ package com.floweytf.mcfext.parse.parser;
 
 import com.floweytf.mcfext.codegen.CodeGenerator;
 import com.floweytf.mcfext.codegen.DebugCodeGenerator;
+import com.floweytf.mcfext.codegen.InlineReport;
+import com.floweytf.mcfext.execution.CompiledActionList;
+import com.floweytf.mcfext.execution.StackVerifier;
 import com.floweytf.mcfext.parse.CommandLineReader;
 import com.floweytf.mcfext.parse.Diagnostics;
 import com.floweytf.mcfext.parse.ParseContext;
@@ -54,6 +57,7 @@ public class Parser {
         BaseParser.init();
         ExtensionsControlFlowV1Parser.init(access);
         ExtensionSubroutineParser.init();
+        ExtensionSuspendParser.init();
     }
 
     final Diagnostics context;
@@ -61,9 +65,15 @@ public class Parser {
     final CommandSourceStack dummySource;
     final CommandDispatcher<CommandSourceStack> dispatcher;
     final ParseFeatureSet features = new ParseFeatureSet();
+    final List<ResourceLocation> imports = new ArrayList<>();
 
     Optional<UnboundEntryAction<CommandSourceStack>> parseCommand(CommandDispatcher<CommandSourceStack> dispatcher,
                                                                   StringReader reader, Consumer<String> onError) {
+        return parseChain(dispatcher, reader, onError).map(x -> new BuildContexts.Unbound<>(reader.getString(), x));
+    }
+
+    Optional<ContextChain<CommandSourceStack>> parseChain(CommandDispatcher<CommandSourceStack> dispatcher,
+                                                          StringReader reader, Consumer<String> onError) {
         final var parseResults = dispatcher.parse(reader, dummySource);
 
         try {
@@ -80,7 +90,7 @@ public class Parser {
             return Optional.empty();
         }
 
-        return chain.map(x -> new BuildContexts.Unbound<>(reader.getString(), x));
+        return chain;
     }
 
     List<ASTNode> parseBlock(Supplier<ASTNode> parseOne, int startLineNo, String terminator, String onUnterminated) {
@@ -230,6 +240,8 @@ public class Parser {
         }
 
         final var context = new CodegenContext();
+        context.imports().addAll(parser.imports);
+        context.inline(!parser.features.isNoInline());
         final var shouldDebugDump = parser.features.isDebugDump();
 
         final CodeGenerator<CommandSourceStack> codegen = shouldDebugDump ? new DebugCodeGenerator<>() :
@@ -237,16 +249,41 @@ public class Parser {
 
         ast.emit(diagnostics, context, codegen);
 
-        if (shouldDebugDump) {
-            LOGGER.info("AST dump: \n{}\nCodegen dump: \n{}\n----", ast.dump(), codegen.dumpDisassembly());
+        if (parser.features.isTimeSlice()) {
+            codegen.addFeatures(CompiledActionList.TIME_SLICED);
+        }
+
+        if (parser.features.isNoInline()) {
+            codegen.addFeatures(CompiledActionList.NO_INLINE);
         }
 
         diagnostics.dumpErrors(2, LOGGER, id, lines);
 
         if (diagnostics.hasError()) {
+            if (shouldDebugDump) {
+                LOGGER.info("AST dump: \n{}\n----", ast.dump());
+            }
+
             return null;
         }
 
-        return codegen.define(id);
+        // The graph is only optimized and lowered when defining the function, so dump it afterward
+        CommandFunction<CommandSourceStack> function;
+        try {
+            function = codegen.define(id);
+        } catch (StackVerifier.VerifyException e) {
+            LOGGER.error("Function '{}' failed stack verification (this is a compiler bug): {}", id, e.getMessage());
+            function = null;
+        }
+
+        if (function != null) {
+            context.inlinedCalls().forEach((name, count) -> InlineReport.add(id, "subroutine " + name, count));
+        }
+
+        if (shouldDebugDump) {
+            LOGGER.info("AST dump: \n{}\nCodegen dump: \n{}\n----", ast.dump(), codegen.dumpDisassembly());
+        }
+
+        return function;
     }
 }
@@ -1,18 +1,26 @@
 package com.floweytf.mcfext.util;
 
+import com.floweytf.mcfext.execution.PredicateMemo;
+import com.floweytf.mcfext.execution.SelectorCache;
+import com.floweytf.mcfext.execution.SourcePipeline;
 import com.google.common.collect.Lists;
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.builder.ArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.context.ContextChain;
 import com.mojang.brigadier.tree.LiteralCommandNode;
 import net.minecraft.commands.CommandBuildContext;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.arguments.*;
 import net.minecraft.commands.arguments.coordinates.BlockPosArgument;
+import net.minecraft.commands.arguments.coordinates.Coordinates;
 import net.minecraft.commands.arguments.coordinates.RotationArgument;
 import net.minecraft.commands.arguments.coordinates.SwizzleArgument;
 import net.minecraft.commands.arguments.coordinates.Vec3Argument;
+import net.minecraft.commands.arguments.selector.EntitySelector;
 import net.minecraft.commands.synchronization.SuggestionProviders;
+import net.minecraft.core.Direction;
 import net.minecraft.core.SectionPos;
 import net.minecraft.core.registries.Registries;
 import net.minecraft.server.commands.ExecuteCommand;
@@ -21,7 +29,12 @@ import net.minecraft.util.Mth;
 import net.minecraft.world.entity.Entity;
 import net.minecraft.world.phys.Vec3;
 
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.function.BiFunction;
 
 import static net.minecraft.commands.Commands.argument;
 import static net.minecraft.commands.Commands.literal;
@@ -195,4 +208,134 @@ public class ExecuteCommandUtils {
 
         dispatcher.register(builder);
     }
-}
\ No newline at end of file
+
+    private static SourcePipeline.Stage forEachEntity(
+        CommandContext<CommandSourceStack> context, String name,
+        BiFunction<CommandSourceStack, Entity, CommandSourceStack> mapper
+    ) {
+        return SourcePipeline.forEachEntity(context.getArgument(name, EntitySelector.class), mapper);
+    }
+
+    private static SourcePipeline.Stage entityCondition(CommandContext<CommandSourceStack> context, boolean expected) {
+        final var selector = context.getArgument("entities", EntitySelector.class);
+        return (SourcePipeline.SingleStage) source ->
+            SelectorCache.findEntities(selector, source).isEmpty() != expected ? source : null;
+    }
+
+    private static SourcePipeline.Stage predicateCondition(CommandContext<CommandSourceStack> context, boolean expected,
+                                                           boolean memoize) {
+        final var id = ResourceLocationArgument.getId(context, "predicate");
+        return (SourcePipeline.SingleStage) source -> {
+            // looked up every time, since predicates can be reloaded
+            final var predicate = ResourceLocationArgument.getPredicate(context.copyFor(source), "predicate");
+            final var result = memoize ?
+                PredicateMemo.test(id, source, () -> ExecuteCommand.checkCustomPredicate(source, predicate)) :
+                ExecuteCommand.checkCustomPredicate(source, predicate);
+            return result == expected ? source : null;
+        };
+    }
+
+    /**
+     * Lowers a single modifier of a {@code run}/{@code loop} header. This must match the behaviour of the corresponding
+     * node registered by {@link #addModifiers} and {@link #addPredicates}.
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private static SourcePipeline.Stage lowerModifier(CommandContext<CommandSourceStack> context, boolean first,
+                                                      boolean memoPredicates) {
+        final var nodes = context.getNodes();
+        final var path = new StringBuilder();
+
+        // the first context starts with the statement name itself
+        for (int i = first ? 1 : 0; i < nodes.size(); i++) {
+            if (!path.isEmpty()) {
+                path.append(' ');
+            }
+            path.append(nodes.get(i).getNode().getName());
+        }
+
+        return switch (path.toString()) {
+        case "as targets" -> forEachEntity(context, "targets", CommandSourceStack::withEntity);
+        case "at targets" -> forEachEntity(context, "targets", (source, entity) -> source
+            .withLevel((ServerLevel) entity.level())
+            .withPosition(entity.position())
+            .withRotation(entity.getRotationVector())
+        );
+        case "positioned pos" -> {
+            final var pos = context.getArgument("pos", Coordinates.class);
+            yield (SourcePipeline.SingleStage) source -> source
+                .withPosition(pos.getPosition(source))
+                .withAnchor(EntityAnchorArgument.Anchor.FEET);
+        }
+        case "positioned as targets" -> forEachEntity(
+            context, "targets", (source, entity) -> source.withPosition(entity.position())
+        );
+        case "rotated rot" -> {
+            final var rot = context.getArgument("rot", Coordinates.class);
+            yield (SourcePipeline.SingleStage) source -> source.withRotation(rot.getRotation(source));
+        }
+        case "rotated as targets" -> forEachEntity(
+            context, "targets", (source, entity) -> source.withRotation(entity.getRotationVector())
+        );
+        case "facing pos" -> {
+            final var pos = context.getArgument("pos", Coordinates.class);
+            yield (SourcePipeline.SingleStage) source -> source.facing(pos.getPosition(source));
+        }
+        case "facing entity targets anchor" -> {
+            final var anchor = context.getArgument("anchor", EntityAnchorArgument.Anchor.class);
+            yield forEachEntity(context, "targets", (source, entity) -> source.facing(entity, anchor));
+        }
+        case "align axes" -> {
+            final var axes = (EnumSet<Direction.Axis>) context.getArgument("axes", EnumSet.class);
+            yield (SourcePipeline.SingleStage) source -> source.withPosition(source.getPosition().align(axes));
+        }
+        case "anchored anchor" -> {
+            final var anchor = context.getArgument("anchor", EntityAnchorArgument.Anchor.class);
+            yield (SourcePipeline.SingleStage) source -> source.withAnchor(anchor);
+        }
+        // rare enough that resolving the dimension through the context is fine
+        case "in dimension" -> (SourcePipeline.SingleStage) source -> source.withLevel(
+            DimensionArgument.getDimension(context.copyFor(source), "dimension")
+        );
+        case "if entity entities" -> entityCondition(context, true);
+        case "unless entity entities" -> entityCondition(context, false);
+        case "if predicate predicate" -> predicateCondition(context, true, memoPredicates);
+        case "unless predicate predicate" -> predicateCondition(context, false, memoPredicates);
+        default -> null;
+        };
+    }
+
+    /**
+     * Lowers a parsed {@code run}/{@code loop} header into a {@link SourcePipeline}.
+     *
+     * @param memoPredicates Whether {@code predicate} conditions are memoized, see {@link PredicateMemo}.
+     * @return The pipeline, or {@code null} if the header uses a modifier that can't be lowered (such as
+     * {@code summon}, {@code on} or most conditions), and must go through brigadier.
+     */
+    @Nullable
+    public static SourcePipeline lowerV1ControlFlow(ContextChain<CommandSourceStack> chain, boolean memoPredicates) {
+        final var stages = new ArrayList<SourcePipeline.Stage>();
+        final var forked = new ArrayList<Boolean>();
+        var isForked = false;
+
+        for (var stage = chain; stage.getStage() == ContextChain.Stage.MODIFY; stage = stage.nextStage()) {
+            final var context = stage.getTopContext();
+            final var lowered = lowerModifier(context, stages.isEmpty(), memoPredicates);
+
+            if (lowered == null) {
+                return null;
+            }
+
+            isForked |= context.isForked();
+            stages.add(lowered);
+            forked.add(isForked);
+        }
+
+        final var forkedArray = new boolean[forked.size()];
+        for (int i = 0; i < forkedArray.length; i++) {
+            forkedArray[i] = forked.get(i);
+        }
+
+        return new SourcePipeline(stages, forkedArray);
+    }
+}